@@ -0,0 +1,224 @@
+package data;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable binary sparse matrix stored in compressed sparse row (CSR) format.
+ * <p>
+ * The column indices of row <code>r</code> are stored in positions
+ * <code>[start(r), end(r))</code> of the {@link #indices() indices} array,
+ * sorted in increasing order and without duplicates. This allows iterating
+ * over the non-zero entries of a row sequentially and testing membership by
+ * binary search.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class CsrMatrix {
+
+    // Row r spans indices[offsets[r]] to indices[offsets[r + 1] - 1]
+    private final int[] offsets;
+    // Column indices of the non-zero entries, sorted within each row
+    private final int[] indices;
+
+    /**
+     * Creates a new CSR matrix from its raw arrays, which are not copied.
+     *
+     * @param offsets Row offsets, with one more element than rows.
+     * @param indices Sorted column indices of each row.
+     */
+    CsrMatrix(int[] offsets, int[] indices) {
+        this.offsets = offsets;
+        this.indices = indices;
+    }
+
+    /**
+     * Creates an empty matrix with no rows.
+     */
+    public CsrMatrix() {
+        this(new int[1], new int[0]);
+    }
+
+    /**
+     * Builds a CSR matrix from a list of (row, column) coordinates. Duplicate
+     * coordinates are stored only once.
+     *
+     * @param numRows Number of rows of the matrix.
+     * @param rows Row index of each entry.
+     * @param cols Column index of each entry.
+     * @param n Number of entries to read from the coordinate arrays.
+     * @return A new CSR matrix with the given non-zero entries.
+     */
+    public static CsrMatrix build(int numRows, int[] rows, int[] cols, int n) {
+        // Counting sort by row
+        int[] offsets = new int[numRows + 1];
+        for (int p = 0; p < n; p++) {
+            offsets[rows[p] + 1]++;
+        }
+        for (int r = 0; r < numRows; r++) {
+            offsets[r + 1] += offsets[r];
+        }
+
+        int[] indices = new int[n];
+        int[] next = Arrays.copyOf(offsets, numRows);
+        for (int p = 0; p < n; p++) {
+            indices[next[rows[p]]++] = cols[p];
+        }
+
+        // Sort each row and count its distinct entries
+        int[] distinct = new int[numRows];
+        IntStream.range(0, numRows)
+                .parallel()
+                .forEach(r -> {
+                    int from = offsets[r];
+                    int to = offsets[r + 1];
+                    Arrays.sort(indices, from, to);
+                    int d = 0;
+                    for (int p = from; p < to; p++) {
+                        if (p == from || indices[p] != indices[p - 1]) {
+                            d++;
+                        }
+                    }
+                    distinct[r] = d;
+                });
+
+        int nnz = IntStream.of(distinct).sum();
+        if (nnz == n) {
+            return new CsrMatrix(offsets, indices);
+        }
+
+        // Compact the duplicate entries
+        int[] uniqueOffsets = new int[numRows + 1];
+        int[] uniqueIndices = new int[nnz];
+        int q = 0;
+        for (int r = 0; r < numRows; r++) {
+            for (int p = offsets[r]; p < offsets[r + 1]; p++) {
+                if (p == offsets[r] || indices[p] != indices[p - 1]) {
+                    uniqueIndices[q++] = indices[p];
+                }
+            }
+            uniqueOffsets[r + 1] = q;
+        }
+
+        return new CsrMatrix(uniqueOffsets, uniqueIndices);
+    }
+
+    /**
+     * Computes the transpose of this matrix.
+     *
+     * @param numCols Number of columns of this matrix, i.e. number of rows of
+     * the transpose.
+     * @return A new CSR matrix with the transpose of this matrix.
+     */
+    public CsrMatrix transpose(int numCols) {
+        int numRows = numRows();
+
+        int[] tOffsets = new int[numCols + 1];
+        for (int p = 0; p < indices.length; p++) {
+            tOffsets[indices[p] + 1]++;
+        }
+        for (int c = 0; c < numCols; c++) {
+            tOffsets[c + 1] += tOffsets[c];
+        }
+
+        // Rows are visited in increasing order, so the rows of the transpose
+        // come out already sorted
+        int[] tIndices = new int[indices.length];
+        int[] next = Arrays.copyOf(tOffsets, numCols);
+        for (int r = 0; r < numRows; r++) {
+            for (int p = offsets[r]; p < offsets[r + 1]; p++) {
+                tIndices[next[indices[p]]++] = r;
+            }
+        }
+
+        return new CsrMatrix(tOffsets, tIndices);
+    }
+
+    /**
+     * @return The number of rows of this matrix.
+     */
+    public int numRows() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return The number of non-zero entries of this matrix.
+     */
+    public int nnz() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * Returns the position in the {@link #indices() indices} array of the
+     * first entry of the given row.
+     *
+     * @param row Target row.
+     * @return The (inclusive) start position of the row.
+     */
+    public int start(int row) {
+        return offsets[row];
+    }
+
+    /**
+     * Returns the position in the {@link #indices() indices} array after the
+     * last entry of the given row.
+     *
+     * @param row Target row.
+     * @return The (exclusive) end position of the row.
+     */
+    public int end(int row) {
+        return offsets[row + 1];
+    }
+
+    /**
+     * Returns the number of non-zero entries in the given row.
+     *
+     * @param row Target row.
+     * @return The number of entries of the row.
+     */
+    public int degree(int row) {
+        return offsets[row + 1] - offsets[row];
+    }
+
+    /**
+     * Returns the backing array of row offsets, which must not be modified.
+     *
+     * @return The row offsets, with one more element than rows.
+     */
+    public int[] offsets() {
+        return offsets;
+    }
+
+    /**
+     * Returns the backing array of column indices, which must not be
+     * modified.
+     *
+     * @return The column indices of all rows.
+     */
+    public int[] indices() {
+        return indices;
+    }
+
+    /**
+     * Tests whether the given entry is non-zero.
+     *
+     * @param row Row of the entry.
+     * @param col Column of the entry.
+     * @return True iff the entry is stored in this matrix.
+     */
+    public boolean contains(int row, int col) {
+        return Arrays.binarySearch(indices, offsets[row], offsets[row + 1], col) >= 0;
+    }
+
+    /**
+     * Returns a stream with the column indices of the given row, in
+     * increasing order.
+     *
+     * @param row Target row.
+     * @return A stream with the column indices of the row.
+     */
+    public IntStream row(int row) {
+        return Arrays.stream(indices, offsets[row], offsets[row + 1]);
+    }
+}
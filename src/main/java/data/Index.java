@@ -1,14 +1,19 @@
 package data;
 
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.TObjectIntMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.map.hash.TObjectIntHashMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * Index that maps objects to consecutive, zero-based, integer Ids.
+ * <p>
+ * Since ids are dense, the elements are stored in an array indexed by id, and
+ * the inverse mapping is a primitive open addressing hash table that stores
+ * ids. Once no more elements are going to be added, the index can be
+ * {@link #freeze() frozen} to release the unused capacity.
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
@@ -17,23 +22,24 @@ import java.util.Set;
  */
 public class Index<T> {
 
-    // Object to ID mapping
-    private final TObjectIntMap<T> idMap;
-    // ID to object inverse mapping
-    private final TIntObjectMap<T> revIdMap;
+    // ID to object mapping
+    private Object[] elements;
+    // Object to ID mapping, with linear probing. Slots store the id + 1, and
+    // 0 for empty slots
+    private int[] table;
     // Max id
     private int maxId;
+    // Whether new elements can be added
+    private boolean frozen;
 
     /**
      * Creates a new empty index.
      */
     public Index() {
-        // Instead checking if the index contains a key and throwing an
-        // exception, which requires 2 lookups, we set the no-entry value to
-        // -1, which is not a valid Id that should break when indexing
-        this.idMap = new TObjectIntHashMap<>(10, 0.5f, -1);
-        this.revIdMap = new TIntObjectHashMap<>();
-        maxId = -1;
+        this.elements = new Object[16];
+        this.table = new int[32];
+        this.maxId = -1;
+        this.frozen = false;
     }
 
     /**
@@ -52,28 +58,119 @@ public class Index<T> {
      * @param elements Collection of elements to be added.
      */
     public final void addElements(Collection<T> elements) {
-        int idx = maxId;
-
         for (T element : elements) {
-            // The collection may contain duplicates, create a new id only once
-            if (!idMap.containsKey(element)) {
-                idx++;
-                idMap.put(element, idx);
-                revIdMap.put(idx, element);
+            addElement(element);
+        }
+    }
+
+    /**
+     * Adds the given element to this index, if not already present.
+     *
+     * @param element Element to be added.
+     * @return The id of the element, either existing or newly created.
+     * @throws IllegalStateException If the element is new and the index is
+     * frozen.
+     */
+    public final int addElement(T element) {
+        int h = element.hashCode();
+        int mask = table.length - 1;
+        int slot = mix(h) & mask;
+
+        // The element may be already indexed, create a new id only once
+        while (table[slot] != 0) {
+            Object e = elements[table[slot] - 1];
+            if (e.hashCode() == h && e.equals(element)) {
+                return table[slot] - 1;
             }
+            slot = (slot + 1) & mask;
+        }
+
+        if (frozen) {
+            throw new IllegalStateException("Cannot add elements to a frozen index");
+        }
+
+        int id = ++maxId;
+        if (id == elements.length) {
+            elements = Arrays.copyOf(elements, 2 * elements.length);
         }
+        elements[id] = element;
+        table[slot] = id + 1;
 
-        maxId = idx;
+        // Keep the load factor under 0.5
+        if (2 * size() > table.length) {
+            rehash(2 * table.length);
+        }
+
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] newTable = new int[capacity];
+        int mask = capacity - 1;
+
+        for (int id = 0; id <= maxId; id++) {
+            int slot = mix(elements[id].hashCode()) & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = id + 1;
+        }
+
+        table = newTable;
+    }
+
+    // Spreads the bits of hash codes that differ only in the upper bits
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Compacts this index to the smallest size that holds its elements, after
+     * which no new elements can be added.
+     */
+    public void freeze() {
+        elements = Arrays.copyOf(elements, size());
+        int capacity = Integer.highestOneBit(Math.max(1, 2 * size() - 1)) << 1;
+        if (capacity < table.length) {
+            rehash(capacity);
+        }
+        frozen = true;
+    }
+
+    /**
+     * Checks whether this index is frozen.
+     *
+     * @return <tt>True</tt> if no new elements can be added to this index.
+     */
+    public boolean isFrozen() {
+        return frozen;
     }
 
     /**
      * Retrieves the numeric id of the given element.
      *
      * @param element Query element.
-     * @return Id of the given element.
+     * @return Id of the given element, or -1 if the element is not indexed.
      */
     public int getId(T element) {
-        return idMap.get(element);
+        return find(element);
+    }
+
+    private int find(Object element) {
+        int h = element.hashCode();
+        int mask = table.length - 1;
+        int slot = mix(h) & mask;
+
+        while (table[slot] != 0) {
+            Object e = elements[table[slot] - 1];
+            if (e.hashCode() == h && e.equals(element)) {
+                return table[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
     }
 
     /**
@@ -83,17 +180,49 @@ public class Index<T> {
      * @return The corresponding element, or <tt>null</tt> if there is no such
      * element.
      */
+    @SuppressWarnings("unchecked")
     public T getElement(int id) {
-        return revIdMap.get(id);
+        return id >= 0 && id <= maxId ? (T) elements[id] : null;
     }
 
     /**
      * Retrieves the set of all indexed elements.
      *
-     * @return The set of all indexed elements, in no particular order.
+     * @return A read-only view of the set of all indexed elements, sorted by
+     * id.
      */
     public Set<T> getElements() {
-        return idMap.keySet();
+        return new AbstractSet<T>() {
+            @Override
+            public boolean contains(Object o) {
+                return o != null && find(o) >= 0;
+            }
+
+            @Override
+            public int size() {
+                return Index.this.size();
+            }
+
+            @Override
+            public Iterator<T> iterator() {
+                return new Iterator<T>() {
+                    private int id = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return id <= maxId;
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return getElement(id++);
+                    }
+                };
+            }
+        };
     }
 
     /**
@@ -103,7 +232,7 @@ public class Index<T> {
      * </tt> otherwise.
      */
     public boolean isEmpty() {
-        return idMap.isEmpty();
+        return maxId < 0;
     }
 
     /**
@@ -122,6 +251,6 @@ public class Index<T> {
      * @return The size of this index.
      */
     public int size() {
-        return idMap.size();
+        return maxId + 1;
     }
 }
@@ -1,13 +1,15 @@
 package data;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import gnu.trove.list.array.TIntArrayList;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import util.TextChunk;
 
 /**
  * Container class for unary/binary feedback datasets.
@@ -15,6 +17,11 @@ import java.util.stream.IntStream;
  * Note that neither ratings or frequencies are stored and only positive
  * feedback is considered. That is, this class only models (user, item) pairs
  * for which an observation is available.
+ * <p>
+ * Observations are stored as two {@link CsrMatrix CSR matrices} over the
+ * internal user and item ids (user-items and item-users), which are rebuilt
+ * every time new data is loaded or merged. The methods based on string
+ * identifiers are thin views on top of these matrices.
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
@@ -25,9 +32,9 @@ public class PreferenceData {
     protected final Index<String> userIndex;
     protected final Index<String> itemIndex;
 
-    // User-items and item-users mappings
-    protected final Map<String, Set<String>> userItems;
-    protected final Map<String, Set<String>> itemUsers;
+    // User-items and item-users matrices
+    protected CsrMatrix userItemMatrix;
+    protected CsrMatrix itemUserMatrix;
 
     // Cached number of observations
     protected int numObservations;
@@ -36,7 +43,8 @@ public class PreferenceData {
      * Load a dataset from a file into memory, in which both users and items are
      * represented as strings.
      *
-     * See {@link #load(java.lang.String) load()} for more details.
+     * See {@link #load(java.lang.String) load()} for more details. The file
+     * can also be a binary {@link PreferenceDataSnapshot snapshot}.
      *
      * @param file File to load.
      * @return A new <code>Dataset</code> object representing the data in the
@@ -44,6 +52,10 @@ public class PreferenceData {
      * @throws IOException
      */
     public static PreferenceData fromFile(String file) throws IOException {
+        if (PreferenceDataSnapshot.isSnapshot(file)) {
+            return PreferenceDataSnapshot.read(file);
+        }
+
         PreferenceData dataset = new PreferenceData();
         dataset.load(file);
         return dataset;
@@ -55,8 +67,8 @@ public class PreferenceData {
     public PreferenceData() {
         userIndex = new Index<>();
         itemIndex = new Index<>();
-        userItems = new HashMap<>();
-        itemUsers = new HashMap<>();
+        userItemMatrix = new CsrMatrix();
+        itemUserMatrix = new CsrMatrix();
     }
 
     /**
@@ -65,46 +77,85 @@ public class PreferenceData {
      * The file should contain an observation per line. Each observation
      * consists on a user identifier, a single tab separator, and an item
      * identifier.
+     * <p>
+     * The file is memory-mapped and split into chunks that are parsed in
+     * parallel. Internal ids are assigned in order of first appearance in the
+     * file.
      *
      * @param file Path of the file to read.
      * @throws IOException
      */
     public void load(String file) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-        String line;
-
-        numObservations = 0;
-
-        while ((line = reader.readLine()) != null) {
-            // Ignore lines starting with #
-            if (line.isEmpty() || line.startsWith("#")) {
-                continue;
+        // Parse the chunks in parallel, with local ids for each chunk
+        List<TextChunk> chunks = TextChunk.split(file, 4 * Runtime.getRuntime().availableProcessors());
+        ParsedChunk[] parsed = chunks.stream()
+                .parallel()
+                .map(ParsedChunk::new)
+                .toArray(ParsedChunk[]::new);
+
+        int[] offsets = new int[parsed.length + 1];
+        for (int c = 0; c < parsed.length; c++) {
+            if (parsed[c].malformed >= 0) {
+                throw new IOException("Malformed line at byte " + parsed[c].malformed + " of " + file);
             }
+            offsets[c + 1] = offsets[c] + parsed[c].users.size();
+        }
 
-            String[] tok = line.split("\t");
-
-            String user = tok[0];
-            String item = tok[1];
+        // Translate local ids into global ids, following the file order
+        int[][] userMaps = new int[parsed.length][];
+        int[][] itemMaps = new int[parsed.length][];
+        for (int c = 0; c < parsed.length; c++) {
+            userMaps[c] = Stream.of(parsed[c].userTokens).mapToInt(userIndex::addElement).toArray();
+            itemMaps[c] = Stream.of(parsed[c].itemTokens).mapToInt(itemIndex::addElement).toArray();
+        }
 
-            if (!userItems.containsKey(user)) {
-                userItems.put(user, new HashSet<>());
-            }
-            Set<String> items = userItems.get(user);
-            items.add(item);
+        int n = offsets[parsed.length];
+        int[] users = new int[n];
+        int[] items = new int[n];
+        IntStream.range(0, parsed.length)
+                .parallel()
+                .forEach(c -> {
+                    ParsedChunk chunk = parsed[c];
+                    for (int p = 0; p < chunk.users.size(); p++) {
+                        users[offsets[c] + p] = userMaps[c][chunk.users.getQuick(p)];
+                        items[offsets[c] + p] = itemMaps[c][chunk.items.getQuick(p)];
+                    }
+                });
+
+        addObservations(users, items, n);
+        // As in the original loader, every line counts, duplicates included
+        numObservations = n;
+    }
 
-            if (!itemUsers.containsKey(item)) {
-                itemUsers.put(item, new HashSet<>());
+    /**
+     * Adds the given observations, expressed as internal ids, to the ones
+     * already stored in this dataset and rebuilds the user-items and
+     * item-users matrices.
+     *
+     * @param users Internal user id of each observation.
+     * @param items Internal item id of each observation.
+     * @param n Number of observations to read from the arrays.
+     */
+    protected void addObservations(int[] users, int[] items, int n) {
+        int current = userItemMatrix.nnz();
+        int[] allUsers = new int[current + n];
+        int[] allItems = new int[current + n];
+
+        // Keep the observations already stored
+        int[] offsets = userItemMatrix.offsets();
+        int[] indices = userItemMatrix.indices();
+        for (int u = 0; u < userItemMatrix.numRows(); u++) {
+            for (int p = offsets[u]; p < offsets[u + 1]; p++) {
+                allUsers[p] = u;
+                allItems[p] = indices[p];
             }
-            Set<String> users = itemUsers.get(item);
-            users.add(user);
-
-            numObservations++;
         }
+        System.arraycopy(users, 0, allUsers, current, n);
+        System.arraycopy(items, 0, allItems, current, n);
 
-        reader.close();
-
-        userIndex.addElements(userItems.keySet());
-        itemIndex.addElements(itemUsers.keySet());
+        userItemMatrix = CsrMatrix.build(userIndex.size(), allUsers, allItems, current + n);
+        itemUserMatrix = userItemMatrix.transpose(itemIndex.size());
+        numObservations = userItemMatrix.nnz();
     }
 
     /**
@@ -191,13 +242,67 @@ public class PreferenceData {
         return IntStream.rangeClosed(0, itemIndex.maxId());
     }
 
+    /**
+     * Returns the user-items matrix, in which rows are internal user ids and
+     * columns are internal item ids.
+     *
+     * @return The user-items matrix of this dataset.
+     */
+    public CsrMatrix userItemMatrix() {
+        return userItemMatrix;
+    }
+
+    /**
+     * Returns the item-users matrix, in which rows are internal item ids and
+     * columns are internal user ids.
+     *
+     * @return The item-users matrix of this dataset.
+     */
+    public CsrMatrix itemUserMatrix() {
+        return itemUserMatrix;
+    }
+
+    /**
+     * Returns a stream with the internal ids of the items preferred by the
+     * given user, in increasing order.
+     *
+     * @param userId Internal ID of the target user.
+     * @return A stream with the item IDs preferred by the user.
+     */
+    public IntStream userItemIds(int userId) {
+        return userItemMatrix.row(userId);
+    }
+
+    /**
+     * Returns a stream with the internal ids of the users that expressed a
+     * preference for the given item, in increasing order.
+     *
+     * @param itemId Internal ID of the target item.
+     * @return A stream with the user IDs that preferred the item.
+     */
+    public IntStream itemUserIds(int itemId) {
+        return itemUserMatrix.row(itemId);
+    }
+
+    /**
+     * Tests whether a given user-item pair preference is observed in this
+     * dataset.
+     *
+     * @param userId Internal ID of the target user.
+     * @param itemId Internal ID of the target item.
+     * @return True iff the user expressed a preference towards the item.
+     */
+    public boolean existsPreference(int userId, int itemId) {
+        return userItemMatrix.contains(userId, itemId);
+    }
+
     /**
      * Returns the set of users.
      *
      * @return The set of users in this dataset.
      */
     public Set<String> users() {
-        return userItems.keySet();
+        return userIndex.getElements();
     }
 
     /**
@@ -206,7 +311,7 @@ public class PreferenceData {
      * @return The set of items in this dataset.
      */
     public Set<String> items() {
-        return itemUsers.keySet();
+        return itemIndex.getElements();
     }
 
     /**
@@ -216,7 +321,8 @@ public class PreferenceData {
      * @return The set of items preferred by the user.
      */
     public Set<String> userItems(String user) {
-        return userItems.get(user);
+        int u = userIndex.getId(user);
+        return u < 0 ? null : new IdSetView(userItemMatrix, u, itemIndex);
     }
 
     /**
@@ -226,7 +332,8 @@ public class PreferenceData {
      * @return The set of users that expressed a preference for the item.
      */
     public Set<String> itemUsers(String item) {
-        return itemUsers.get(item);
+        int i = itemIndex.getId(item);
+        return i < 0 ? null : new IdSetView(itemUserMatrix, i, userIndex);
     }
 
     /**
@@ -238,8 +345,9 @@ public class PreferenceData {
      * @return True iff the user expressed a preference towards the item.
      */
     public boolean existsPreference(String user, String item) {
-        Set<String> ui = userItems.get(user);
-        return ui != null && ui.contains(item);
+        int u = userIndex.getId(user);
+        int i = itemIndex.getId(item);
+        return u >= 0 && i >= 0 && userItemMatrix.contains(u, i);
     }
 
     /**
@@ -249,7 +357,7 @@ public class PreferenceData {
      * @return True iff the user exists in this dataset.
      */
     public boolean containsUser(String user) {
-        return userItems.containsKey(user);
+        return userIndex.getId(user) >= 0;
     }
 
     /**
@@ -259,11 +367,14 @@ public class PreferenceData {
      * @return True iff the item exists in this dataset.
      */
     public boolean containsItem(String item) {
-        return itemUsers.containsKey(item);
+        return itemIndex.getId(item) >= 0;
     }
 
     /**
      * Returns the size of this dataset as the number of observations (ratings).
+     * After loading a file it is the number of lines read, including
+     * duplicated observations, and after a merge it is the number of distinct
+     * (user, item) pairs.
      *
      * @return The number of observations in this dataset.
      */
@@ -279,35 +390,115 @@ public class PreferenceData {
      * @param other Other preference data to merge.
      */
     public void merge(PreferenceData other) {
-        // Merge users
-        for (String user : other.users()) {
-            // Copy the user's items
-            Set<String> thisUserItems = userItems.get(user);
-            if (thisUserItems == null) {
-                // User is new
-                userItems.put(user, thisUserItems = new HashSet<>());
+        // Update indices, keeping the translation of the other ids into ids
+        // of this dataset
+        int[] userMap = other.userIds().map(u -> userIndex.addElement(other.user(u))).toArray();
+        int[] itemMap = other.itemIds().map(i -> itemIndex.addElement(other.item(i))).toArray();
+
+        CsrMatrix otherMatrix = other.userItemMatrix();
+        int[] offsets = otherMatrix.offsets();
+        int[] indices = otherMatrix.indices();
+        int n = otherMatrix.nnz();
+        int[] users = new int[n];
+        int[] items = new int[n];
+        for (int u = 0; u < otherMatrix.numRows(); u++) {
+            for (int p = offsets[u]; p < offsets[u + 1]; p++) {
+                users[p] = userMap[u];
+                items[p] = itemMap[indices[p]];
+            }
+        }
+
+        // Rebuild the matrices and update number of observations
+        addObservations(users, items, n);
+    }
+
+    // Observations of a chunk of a file, with ids local to the chunk
+    private static class ParsedChunk {
+
+        private final TIntArrayList users;
+        private final TIntArrayList items;
+        private final String[] userTokens;
+        private final String[] itemTokens;
+        // Position of the first malformed line, or -1 if there is none
+        private long malformed;
+
+        ParsedChunk(TextChunk chunk) {
+            users = new TIntArrayList();
+            items = new TIntArrayList();
+            malformed = -1;
+
+            TextChunk.Dictionary userDict = new TextChunk.Dictionary(chunk);
+            TextChunk.Dictionary itemDict = new TextChunk.Dictionary(chunk);
+            while (chunk.nextLine()) {
+                if (chunk.numFields() < 2) {
+                    malformed = chunk.linePosition();
+                    break;
+                }
+                users.add(userDict.add(0));
+                items.add(itemDict.add(1));
             }
-            thisUserItems.addAll(other.userItems(user));
+
+            userTokens = userDict.tokens();
+            itemTokens = itemDict.tokens();
         }
+    }
 
-        // Merge items
-        for (String item : other.items()) {
-            // Copy the item users
-            Set<String> thisItemUsers = itemUsers.get(item);
-            if (thisItemUsers == null) {
-                // Item is new
-                itemUsers.put(item, thisItemUsers = new HashSet<>());
+    /**
+     * Compacts the user and item indices once no more data is going to be
+     * added. Further calls to {@link #load(java.lang.String) load()} or
+     * {@link #merge(data.PreferenceData) merge()} with new users or items will
+     * fail.
+     */
+    public void freeze() {
+        userIndex.freeze();
+        itemIndex.freeze();
+    }
+
+    // Read-only set of users or items backed by a row of a CSR matrix
+    private static class IdSetView extends AbstractSet<String> {
+
+        private final CsrMatrix matrix;
+        private final int row;
+        private final Index<String> index;
+
+        IdSetView(CsrMatrix matrix, int row, Index<String> index) {
+            this.matrix = matrix;
+            this.row = row;
+            this.index = index;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof String)) {
+                return false;
             }
-            thisItemUsers.addAll(other.itemUsers(item));
+            int id = index.getId((String) o);
+            return id >= 0 && matrix.contains(row, id);
         }
 
-        // Update indices
-        userIndex.addElements(other.users());
-        itemIndex.addElements(other.items());
+        @Override
+        public int size() {
+            return matrix.degree(row);
+        }
 
-        // Update number of observations
-        numObservations = users().stream()
-                .mapToInt(u -> userItems.get(u).size())
-                .sum();
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int p = matrix.start(row);
+
+                @Override
+                public boolean hasNext() {
+                    return p < matrix.end(row);
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return index.getElement(matrix.indices()[p++]);
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,275 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Compact binary on-disk format for {@link PreferenceData}, which can be
+ * written once and re-opened much faster than parsing the original text file.
+ * <p>
+ * A snapshot contains the user and item dictionaries, as UTF-8 strings sorted
+ * by internal id, both the user-items and item-users
+ * {@link CsrMatrix CSR matrices}, and the {@link PreferenceData#size() number
+ * of observations} of the original data. Snapshots are read through memory-mapped
+ * buffers, so that the adjacency arrays are bulk-copied without any parsing.
+ * <p>
+ * Snapshots can be created from the command line with:
+ * <code>data.PreferenceDataSnapshot &lt;input file&gt; &lt;snapshot file&gt;</code>
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class PreferenceDataSnapshot {
+
+    // "PREF" in ASCII, as the first bytes of the file, which is little-endian
+    private static final int MAGIC = 0x46455250;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    // Maximum number of bytes mapped at once when reading arrays
+    private static final int MAX_WINDOW = 1 << 30;
+    // Number of strings decoded by each parallel task
+    private static final int DECODE_BLOCK = 1 << 12;
+
+    private PreferenceDataSnapshot() {
+    }
+
+    /**
+     * Tests whether the given file is a preference data snapshot, by looking
+     * at its header.
+     *
+     * @param file Path of the file.
+     * @return True iff the file starts with the snapshot header.
+     * @throws IOException
+     */
+    public static boolean isSnapshot(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            return header.position() == 4 && header.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Writes the given preference data into a snapshot file.
+     *
+     * @param data Preference data to write.
+     * @param file Path of the snapshot file.
+     * @throws IOException
+     */
+    public static void write(PreferenceData data, String file) throws IOException {
+        byte[][] users = data.userIds()
+                .mapToObj(u -> data.user(u).getBytes(StandardCharsets.UTF_8))
+                .toArray(byte[][]::new);
+        byte[][] items = data.itemIds()
+                .mapToObj(i -> data.item(i).getBytes(StandardCharsets.UTF_8))
+                .toArray(byte[][]::new);
+        CsrMatrix userItems = data.userItemMatrix();
+        CsrMatrix itemUsers = data.itemUserMatrix();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(users.length);
+            buffer.putInt(items.length);
+            buffer.putInt(userItems.nnz());
+            buffer.putInt(data.size());
+            buffer.putLong(blobSize(users));
+            buffer.putLong(blobSize(items));
+
+            writeStrings(channel, buffer, users);
+            writeStrings(channel, buffer, items);
+            writeInts(channel, buffer, userItems.offsets());
+            writeInts(channel, buffer, userItems.indices());
+            writeInts(channel, buffer, itemUsers.offsets());
+            writeInts(channel, buffer, itemUsers.indices());
+
+            flush(channel, buffer);
+        }
+    }
+
+    private static long blobSize(byte[][] strings) {
+        long size = 0;
+        for (byte[] s : strings) {
+            size += s.length;
+        }
+        return size;
+    }
+
+    // String offsets within the blob, followed by the blob itself
+    private static void writeStrings(FileChannel channel, ByteBuffer buffer, byte[][] strings) throws IOException {
+        long offset = 0;
+        for (int s = 0; s <= strings.length; s++) {
+            if (buffer.remaining() < 8) {
+                flush(channel, buffer);
+            }
+            buffer.putLong(offset);
+            if (s < strings.length) {
+                offset += strings[s].length;
+            }
+        }
+
+        for (byte[] s : strings) {
+            int p = 0;
+            while (p < s.length) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer);
+                }
+                int len = Math.min(buffer.remaining(), s.length - p);
+                buffer.put(s, p, len);
+                p += len;
+            }
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] array) throws IOException {
+        for (int value : array) {
+            if (buffer.remaining() < 4) {
+                flush(channel, buffer);
+            }
+            buffer.putInt(value);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Reads the preference data stored in a snapshot file.
+     *
+     * @param file Path of the snapshot file.
+     * @return A new <code>PreferenceData</code> object with the data in the
+     * snapshot.
+     * @throws IOException
+     */
+    public static PreferenceData read(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a preference data snapshot: " + file);
+            }
+            int numUsers = header.getInt();
+            int numItems = header.getInt();
+            int nnz = header.getInt();
+            int numObservations = header.getInt();
+            long userBlobSize = header.getLong();
+            long itemBlobSize = header.getLong();
+
+            long pos = HEADER_SIZE;
+            String[] users = readStrings(channel, pos, numUsers, userBlobSize);
+            pos += 8L * (numUsers + 1) + userBlobSize;
+            String[] items = readStrings(channel, pos, numItems, itemBlobSize);
+            pos += 8L * (numItems + 1) + itemBlobSize;
+
+            int[] userOffsets = new int[numUsers + 1];
+            pos = readInts(channel, pos, userOffsets);
+            int[] userIndices = new int[nnz];
+            pos = readInts(channel, pos, userIndices);
+            int[] itemOffsets = new int[numItems + 1];
+            pos = readInts(channel, pos, itemOffsets);
+            int[] itemIndices = new int[nnz];
+            readInts(channel, pos, itemIndices);
+
+            PreferenceData data = new PreferenceData();
+            for (String user : users) {
+                data.userIndex.addElement(user);
+            }
+            for (String item : items) {
+                data.itemIndex.addElement(item);
+            }
+            data.userItemMatrix = new CsrMatrix(userOffsets, userIndices);
+            data.itemUserMatrix = new CsrMatrix(itemOffsets, itemIndices);
+            data.numObservations = numObservations;
+
+            return data;
+        }
+    }
+
+    private static String[] readStrings(FileChannel channel, long pos, int n, long blobSize) throws IOException {
+        if (blobSize > Integer.MAX_VALUE) {
+            throw new IOException("Dictionary too large: " + blobSize + " bytes");
+        }
+
+        long[] offsets = new long[n + 1];
+        readLongs(channel, pos, offsets);
+        ByteBuffer blob = map(channel, pos + 8L * (n + 1), blobSize);
+
+        // Decode the strings in parallel blocks
+        String[] strings = new String[n];
+        IntStream.range(0, (n + DECODE_BLOCK - 1) / DECODE_BLOCK)
+                .parallel()
+                .forEach(b -> {
+                    ByteBuffer view = blob.duplicate();
+                    byte[] bytes = new byte[64];
+                    for (int s = b * DECODE_BLOCK; s < Math.min(n, (b + 1) * DECODE_BLOCK); s++) {
+                        int len = (int) (offsets[s + 1] - offsets[s]);
+                        if (bytes.length < len) {
+                            bytes = new byte[len];
+                        }
+                        view.position((int) offsets[s]);
+                        view.get(bytes, 0, len);
+                        strings[s] = new String(bytes, 0, len, StandardCharsets.UTF_8);
+                    }
+                });
+
+        return strings;
+    }
+
+    // Bulk-copies ints from mapped windows of the file, returning the
+    // position after the array
+    private static long readInts(FileChannel channel, long pos, int[] dst) throws IOException {
+        int done = 0;
+        while (done < dst.length) {
+            int len = Math.min(dst.length - done, MAX_WINDOW / 4);
+            map(channel, pos, 4L * len).asIntBuffer().get(dst, done, len);
+            done += len;
+            pos += 4L * len;
+        }
+        return pos;
+    }
+
+    private static long readLongs(FileChannel channel, long pos, long[] dst) throws IOException {
+        int done = 0;
+        while (done < dst.length) {
+            int len = Math.min(dst.length - done, MAX_WINDOW / 8);
+            map(channel, pos, 8L * len).asLongBuffer().get(dst, done, len);
+            done += len;
+            pos += 8L * len;
+        }
+        return pos;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Converts a preference data file into a snapshot.
+     *
+     * @param args Input file and output snapshot file.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: <input file> <snapshot file>");
+            return;
+        }
+
+        write(PreferenceData.fromFile(args[0]), args[1]);
+    }
+}
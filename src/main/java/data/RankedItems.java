@@ -0,0 +1,68 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact list of recommended items, stored as internal item ids and scores
+ * in parallel arrays, sorted by decreasing score.
+ * <p>
+ * Item identifiers and {@link ScoredItem scored items} are only created when
+ * the list is {@link #toScoredItems(data.PreferenceData) converted}.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class RankedItems {
+
+    private final int[] items;
+    private final float[] scores;
+
+    /**
+     * Creates a new list of ranked items.
+     *
+     * @param items Internal ids of the items, by rank.
+     * @param scores Scores of the items, by rank.
+     */
+    public RankedItems(int[] items, float[] scores) {
+        this.items = items;
+        this.scores = scores;
+    }
+
+    /**
+     * @return The number of items in this list.
+     */
+    public int size() {
+        return items.length;
+    }
+
+    /**
+     * @param rank Zero-based rank of an item.
+     * @return The internal id of the item at the given rank.
+     */
+    public int item(int rank) {
+        return items[rank];
+    }
+
+    /**
+     * @param rank Zero-based rank of an item.
+     * @return The score of the item at the given rank.
+     */
+    public float score(int rank) {
+        return scores[rank];
+    }
+
+    /**
+     * Converts this list into scored items.
+     *
+     * @param data Preference data that maps the internal item ids.
+     * @return The list of {@link ScoredItem scored items}, by rank.
+     */
+    public List<ScoredItem> toScoredItems(PreferenceData data) {
+        List<ScoredItem> list = new ArrayList<>(items.length);
+        for (int p = 0; p < items.length; p++) {
+            list.add(new ScoredItem(data.item(items[p]), scores[p]));
+        }
+        return list;
+    }
+}
@@ -1,12 +1,12 @@
 package recommender;
 
 import data.PreferenceData;
+import data.RankedItems;
 import data.ScoredItem;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
+import util.TopKHeaps;
 
 /**
  * Abstract recommender implementation that ranks items by individual score,
@@ -21,9 +21,12 @@ public abstract class AbstractPointwiseRecommender implements IRecommender {
      * Training dataset
      */
     protected final PreferenceData train;
+    // Per-thread top-N selector, reused while the list size does not change
+    private final ThreadLocal<TopKHeaps> selectors;
 
     public AbstractPointwiseRecommender(PreferenceData trainData) {
         this.train = trainData;
+        this.selectors = new ThreadLocal<>();
     }
 
     @Override
@@ -33,11 +36,36 @@ public abstract class AbstractPointwiseRecommender implements IRecommender {
 
     @Override
     public List<ScoredItem> recommend(String user, int howMany, Set<String> candidateItems) {
-        List<ScoredItem> recommended = new LinkedList<>();
+        int u = train.userId(user);
+        // We cannot compute recommendations for unknown users
+        if (u < 0) {
+            return new LinkedList<>();
+        }
+
+        // Unknown items cannot be scored, so they are not candidates
+        int[] candidates = candidateItems.stream()
+                .mapToInt(train::itemId)
+                .filter(i -> i >= 0)
+                .toArray();
 
-        Queue<ScoredItem> queue = new PriorityQueue<>(howMany);
+        return recommend(u, howMany, candidates);
+    }
+
+    @Override
+    public List<ScoredItem> recommend(int user, int howMany) {
+        return recommend(user, howMany, train.itemIds().toArray());
+    }
+
+    @Override
+    public List<ScoredItem> recommend(int user, int howMany, int[] candidateItems) {
+        return rank(user, howMany, candidateItems).toScoredItems(train);
+    }
 
-        for (String item : candidateItems) {
+    @Override
+    public RankedItems rank(int user, int howMany, int[] candidateItems) {
+        TopKHeaps selector = selector(howMany);
+
+        for (int item : candidateItems) {
             // Discard items in the user's training set
             if (train.existsPreference(user, item)) {
                 continue;
@@ -49,20 +77,56 @@ public abstract class AbstractPointwiseRecommender implements IRecommender {
                 continue;
             }
 
-            ScoredItem si = new ScoredItem(item, score);
-            if (queue.size() < howMany) {
-                queue.offer(si);
-            } else if (queue.peek().compareTo(si) < 0) {
-                queue.poll();
-                queue.offer(si);
-            }
+            selector.offer(0, item, score);
         }
 
-        while (!queue.isEmpty()) {
-            recommended.add(0, queue.poll());
+        return ranked(selector);
+    }
+
+    /**
+     * Retrieves an empty top-N selector for the current thread, which keeps
+     * the best (item, score) pairs offered to its heap 0.
+     *
+     * @param howMany Maximum number of items to select.
+     * @return The empty selector.
+     */
+    protected TopKHeaps selector(int howMany) {
+        TopKHeaps selector = selectors.get();
+        if (selector == null || selector.capacity() != howMany) {
+            selector = new TopKHeaps(howMany, 1);
+            selectors.set(selector);
         }
+        selector.clear(0);
+        return selector;
+    }
 
-        return recommended;
+    /**
+     * Sorts the items of a top-N selector into a compact list.
+     *
+     * @param selector Selector obtained from {@link #selector(int)}.
+     * @return The selected items, by decreasing score.
+     */
+    protected static RankedItems ranked(TopKHeaps selector) {
+        return ranked(selector, 0);
+    }
+
+    /**
+     * Sorts the items of a heap of (item, score) pairs into a compact list.
+     *
+     * @param heaps Set of heaps.
+     * @param heap Index of the heap.
+     * @return The items of the heap, by decreasing score.
+     */
+    protected static RankedItems ranked(TopKHeaps heaps, int heap) {
+        heaps.sort(heap);
+        int size = heaps.size(heap);
+        int[] items = new int[size];
+        float[] scores = new float[size];
+        for (int p = 0; p < size; p++) {
+            items[p] = heaps.id(heap, p);
+            scores[p] = heaps.score(heap, p);
+        }
+        return new RankedItems(items, scores);
     }
 
     /**
@@ -70,8 +134,28 @@ public abstract class AbstractPointwiseRecommender implements IRecommender {
      *
      * @param user Target user.
      * @param item Target item.
+     * @return The predicted score, or <tt>NaN</tt> if the user or the item are
+     * unknown.
+     */
+    public float predictScore(String user, String item) {
+        int u = train.userId(user);
+        int i = train.itemId(item);
+        // If the user or the item is unknown, we cannot compute a prediction
+        if (u < 0 || i < 0) {
+            return Float.NaN;
+        }
+
+        return predictScore(u, i);
+    }
+
+    /**
+     * Predicts the preference score of the given user towards the given item,
+     * both expressed as internal ids of the training data.
+     *
+     * @param user Internal id of the target user.
+     * @param item Internal id of the target item.
      * @return The predicted score.
      */
-    public abstract float predictScore(String user, String item);
+    public abstract float predictScore(int user, int item);
 
 }
@@ -1,5 +1,6 @@
 package recommender;
 
+import data.RankedItems;
 import data.ScoredItem;
 import java.util.List;
 import java.util.Set;
@@ -40,4 +41,46 @@ public interface IRecommender {
      * by decreasing preference score.
      */
     List<ScoredItem> recommend(String user, int howMany, Set<String> candidateItems);
+
+    /**
+     * Computes a list of recommendations for the user with the given internal
+     * id from all the training items.
+     *
+     * @param user Internal id of the target user in the training data.
+     * @param howMany Maximum size of the recommendation list.
+     * @return The list of recommended {@link ScoredItem scored items}, sorted
+     * by decreasing preference score.
+     */
+    List<ScoredItem> recommend(int user, int howMany);
+
+    /**
+     * Computes a list of recommendations for the user with the given internal
+     * id from the given candidate items, also expressed as internal ids.
+     * <p>
+     * This is the preferred entry point for batch recommendation, as it
+     * avoids looking up string identifiers for every candidate item.
+     *
+     * @param user Internal id of the target user in the training data.
+     * @param howMany Maximum size of the recommendation list.
+     * @param candidateItems Internal ids of the possible items to be
+     * recommended.
+     * @return The list of recommended {@link ScoredItem scored items}, sorted
+     * by decreasing preference score.
+     */
+    List<ScoredItem> recommend(int user, int howMany, int[] candidateItems);
+
+    /**
+     * Computes the recommendations for the user with the given internal id
+     * from the given candidate items, as a compact list of internal item ids
+     * and scores. Equivalent to
+     * {@link #recommend(int, int, int[]) recommend()}, without creating an
+     * object for every recommended item.
+     *
+     * @param user Internal id of the target user in the training data.
+     * @param howMany Maximum size of the recommendation list.
+     * @param candidateItems Internal ids of the possible items to be
+     * recommended.
+     * @return The recommended items, sorted by decreasing preference score.
+     */
+    RankedItems rank(int user, int howMany, int[] candidateItems);
 }
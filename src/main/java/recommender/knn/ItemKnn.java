@@ -1,19 +1,47 @@
 package recommender.knn;
 
+import data.CsrMatrix;
 import data.PreferenceData;
-import java.util.Set;
+import data.RankedItems;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 import recommender.AbstractPointwiseRecommender;
+import similarity.IIndexedSimilarity;
 import similarity.ISimilarity;
+import util.TopKHeaps;
 
 /**
  * Implementation of the Item KNN recommender for positive-only feedback.
+ * <p>
+ * By default, similarities are computed on demand for every candidate item
+ * and item of the user. Alternatively, the most similar items of each item
+ * can be precomputed into a sparse item-item matrix, so that recommendations
+ * are computed by adding up the rows of the items of the user. In that case
+ * only items with some user in common are compared, which assumes that the
+ * similarity of items without users in common is 0, as for Jaccard's
+ * coefficient or the cosine similarity.
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
  */
 public class ItemKnn extends AbstractPointwiseRecommender {
 
+    // Number of items processed by each parallel task
+    private static final int BLOCK_SIZE = 256;
+
     private final ISimilarity sim;
+    // Similarity between internal ids, either native or mapping the ids
+    private final IIndexedSimilarity indexedSim;
+    // Number of similar items kept for each item, or 0 for all of them, if
+    // the similarities are precomputed
+    private final int numNeighbors;
+    // For each item j, the items i that have j among their neighbors and
+    // sim(i, j), sorted by i, or null if not precomputed
+    private final int[] offsets;
+    private final int[] ids;
+    private final float[] scores;
+    // Per-thread dense score accumulators for recommendation
+    private final ThreadLocal<double[]> accumulators;
 
     /**
      * Creates a new Item kNN recommender using the given similarity function.
@@ -24,32 +52,232 @@ public class ItemKnn extends AbstractPointwiseRecommender {
     public ItemKnn(PreferenceData train, ISimilarity similarity) {
         super(train);
         this.sim = similarity;
+        this.indexedSim = similarity instanceof IIndexedSimilarity
+                          ? (IIndexedSimilarity) similarity
+                          : (i, j) -> similarity.compute(train.item(i), train.item(j));
+        this.numNeighbors = -1;
+        this.offsets = null;
+        this.ids = null;
+        this.scores = null;
+        this.accumulators = null;
+    }
+
+    /**
+     * Creates a new Item kNN recommender that precomputes in parallel the
+     * most similar items of each item with the given similarity function.
+     *
+     * @param train Training preference data.
+     * @param similarity Item similarity function.
+     * @param neighbors Number of most similar items kept for each item, or 0
+     * to keep all the items with some user in common.
+     */
+    public ItemKnn(PreferenceData train, ISimilarity similarity, int neighbors) {
+        super(train);
+        this.sim = similarity;
+        this.indexedSim = similarity instanceof IIndexedSimilarity
+                          ? (IIndexedSimilarity) similarity
+                          : (i, j) -> similarity.compute(train.item(i), train.item(j));
+        this.numNeighbors = neighbors;
+
+        // Neighbors of each item, computed in parallel blocks
+        int numItems = train.maxItemID() + 1;
+        int numBlocks = (numItems + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[][] rowIds = new int[numItems][];
+        float[][] rowScores = new float[numItems][];
+        ThreadLocal<NeighborFinder> finders = ThreadLocal.withInitial(() -> new NeighborFinder(numItems));
+        IntStream.range(0, numBlocks)
+                .parallel()
+                .forEach(b -> {
+                    NeighborFinder finder = finders.get();
+                    for (int i = b * BLOCK_SIZE; i < Math.min(numItems, (b + 1) * BLOCK_SIZE); i++) {
+                        finder.computeRow(i);
+                        rowIds[i] = finder.rowIds;
+                        rowScores[i] = finder.rowScores;
+                    }
+                });
+
+        // Transpose, so that the items of a user index the rows to add up
+        offsets = new int[numItems + 1];
+        for (int[] row : rowIds) {
+            for (int j : row) {
+                offsets[j + 1]++;
+            }
+        }
+        for (int j = 0; j < numItems; j++) {
+            long end = (long) offsets[j] + offsets[j + 1];
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many similarities, keep less neighbors per item");
+            }
+            offsets[j + 1] = (int) end;
+        }
+        ids = new int[offsets[numItems]];
+        scores = new float[offsets[numItems]];
+        int[] next = Arrays.copyOf(offsets, numItems);
+        for (int i = 0; i < numItems; i++) {
+            for (int p = 0; p < rowIds[i].length; p++) {
+                int q = next[rowIds[i][p]]++;
+                ids[q] = i;
+                scores[q] = rowScores[i][p];
+            }
+        }
+
+        accumulators = ThreadLocal.withInitial(() -> new double[numItems]);
+    }
+
+    // Most similar items of an item among those with some user in common
+    private class NeighborFinder {
+
+        private final boolean[] seen;
+        private final int[] touched;
+        private final TopKHeaps heap;
+        // Output row
+        private int[] rowIds;
+        private float[] rowScores;
+
+        private NeighborFinder(int numItems) {
+            this.seen = new boolean[numItems];
+            this.touched = new int[numItems];
+            this.heap = numNeighbors > 0 ? new TopKHeaps(numNeighbors, 1) : null;
+        }
+
+        private void computeRow(int i) {
+            CsrMatrix itemUsers = train.itemUserMatrix();
+            CsrMatrix userItems = train.userItemMatrix();
+            int[] users = itemUsers.indices();
+            int[] items = userItems.indices();
+
+            // Items with some user in common with i
+            int numTouched = 0;
+            seen[i] = true;
+            for (int p = itemUsers.start(i); p < itemUsers.end(i); p++) {
+                int u = users[p];
+                for (int q = userItems.start(u); q < userItems.end(u); q++) {
+                    int j = items[q];
+                    if (!seen[j]) {
+                        seen[j] = true;
+                        touched[numTouched++] = j;
+                    }
+                }
+            }
+            seen[i] = false;
+
+            // Score them, discarding NaNs and zeros, which add nothing
+            int n = 0;
+            float[] values = new float[numTouched];
+            for (int p = 0; p < numTouched; p++) {
+                int j = touched[p];
+                seen[j] = false;
+                float s = indexedSim.compute(i, j);
+                if (!Float.isNaN(s) && s != 0) {
+                    touched[n] = j;
+                    values[n++] = s;
+                }
+            }
+
+            // Keep the top-K if required
+            if (heap != null) {
+                heap.clear(0);
+                for (int p = 0; p < n; p++) {
+                    heap.offer(0, touched[p], values[p]);
+                }
+                n = heap.size(0);
+                for (int p = 0; p < n; p++) {
+                    touched[p] = heap.id(0, p);
+                    values[p] = heap.score(0, p);
+                }
+            }
+            rowIds = Arrays.copyOf(touched, n);
+            rowScores = Arrays.copyOf(values, n);
+        }
+    }
+
+    /**
+     * @return The number of similar items kept for each item, 0 if all of
+     * them are kept, or -1 if similarities are computed on demand.
+     */
+    public int getNumNeighbors() {
+        return numNeighbors;
     }
 
     @Override
-    public float predictScore(String user, String item) {
-        Set<String> userItems = train.userItems(user);
-        // We cannot compute a prediction for users without items (new to the
-        // system)
-        if (userItems == null) {
-            return Float.NaN;
-        }
-
-        double score = userItems.stream()
-                // ignore target item
-                .filter(userItem -> !item.equals(userItem))
-                // compute similarities
-                .mapToDouble(j -> sim.compute(item, j))
-                // discard NaNs
-                .filter(s -> !Double.isNaN(s))
-                .sum();
+    public float predictScore(int user, int item) {
+        CsrMatrix userItems = train.userItemMatrix();
+        int[] items = userItems.indices();
+
+        double score = 0;
+        for (int p = userItems.start(user); p < userItems.end(user); p++) {
+            int j = items[p];
+            // ignore target item
+            if (j == item) {
+                continue;
+            }
+
+            float s;
+            if (offsets == null) {
+                s = indexedSim.compute(item, j);
+            } else {
+                int q = Arrays.binarySearch(ids, offsets[j], offsets[j + 1], item);
+                s = q < 0 ? 0 : scores[q];
+            }
+            // discard NaNs
+            if (!Float.isNaN(s)) {
+                score += s;
+            }
+        }
 
         return (float) score;
     }
 
+    /**
+     * Computes a list of recommendations. If the similarities are
+     * precomputed, the rows of the items of the user are added up into a
+     * dense accumulator instead of predicting the score of every candidate
+     * item, with the same result.
+     */
+    @Override
+    public RankedItems rank(int user, int howMany, int[] candidateItems) {
+        if (offsets == null) {
+            return super.rank(user, howMany, candidateItems);
+        }
+
+        // Add up the rows of the items of the user, in the same order as
+        // predictScore
+        double[] acc = accumulators.get();
+        CsrMatrix userItems = train.userItemMatrix();
+        int[] items = userItems.indices();
+        for (int p = userItems.start(user); p < userItems.end(user); p++) {
+            int j = items[p];
+            for (int q = offsets[j]; q < offsets[j + 1]; q++) {
+                acc[ids[q]] += scores[q];
+            }
+        }
+
+        // Rank the candidates, all of which have a prediction
+        TopKHeaps selector = selector(howMany);
+        for (int item : candidateItems) {
+            // Discard items in the user's training set
+            if (train.existsPreference(user, item)) {
+                continue;
+            }
+
+            float score = (float) acc[item];
+            selector.offer(0, item, score);
+        }
+
+        // Reset only the entries that were touched
+        for (int p = userItems.start(user); p < userItems.end(user); p++) {
+            int j = items[p];
+            for (int q = offsets[j]; q < offsets[j + 1]; q++) {
+                acc[ids[q]] = 0;
+            }
+        }
+
+        return ranked(selector);
+    }
+
     @Override
     public String toString() {
-        return "ItemKNN_" + sim;
+        return offsets == null ? "ItemKNN_" + sim : "ItemKNN_" + numNeighbors + "_" + sim;
     }
 
 }
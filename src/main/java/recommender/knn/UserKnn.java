@@ -1,15 +1,32 @@
 package recommender.knn;
 
+import data.CsrMatrix;
 import data.PreferenceData;
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
+import data.RankedItems;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import java.util.Locale;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Random;
+import java.util.stream.IntStream;
 import recommender.AbstractPointwiseRecommender;
+import similarity.IIndexedSimilarity;
 import similarity.ISimilarity;
+import similarity.MinHashIndex;
+import util.ConcurrentIntCache;
+import util.TopKHeaps;
 
 /**
  * User-based nearest neighbors recommender for binary feedback.
+ * <p>
+ * Neighborhoods are computed on demand and cached, and recommendations can be
+ * computed concurrently from many threads: each neighborhood is computed only
+ * once, even if several threads request it at the same time.
+ * <p>
+ * Neighborhoods are exact by default. For large numbers of users, a
+ * {@link MinHashIndex} can be set to rank only the candidate neighbors it
+ * retrieves, trading recall for speed.
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
@@ -17,8 +34,15 @@ import similarity.ISimilarity;
 public class UserKnn extends AbstractPointwiseRecommender {
 
     private final int numNeighbors;
-    private final TIntObjectMap<Queue<SimilarUser>> neighborhoods;
+    // Neighborhoods computed on demand, safe to share between threads
+    private final ConcurrentIntCache<Neighborhood> neighborhoods;
     private final ISimilarity sim;
+    // Similarity between internal ids, either native or mapping the ids
+    private final IIndexedSimilarity indexedSim;
+    // Optional index of candidate neighbors, read by the serving threads
+    private volatile MinHashIndex candidateIndex;
+    // Per-thread dense score accumulators for recommendation
+    private final ThreadLocal<ScoreAccumulator> accumulators;
 
     /**
      * Creates a new User KNN recommender using the given similarity function
@@ -29,64 +53,206 @@ public class UserKnn extends AbstractPointwiseRecommender {
      * @param neighbors Number of neighbors to use for predictions.
      */
     public UserKnn(PreferenceData train, ISimilarity sim, int neighbors) {
+        this(train, sim, neighbors, 0);
+    }
+
+    /**
+     * Creates a new User KNN recommender using the given similarity function
+     * and number of neighbors, which keeps in memory a limited number of
+     * neighborhoods, discarding the least recently used ones when the limit
+     * is reached.
+     *
+     * @param train Training preference data.
+     * @param sim User similarity function.
+     * @param neighbors Number of neighbors to use for predictions.
+     * @param maxCachedNeighborhoods Maximum number of cached neighborhoods,
+     * or 0 for no limit.
+     */
+    public UserKnn(PreferenceData train, ISimilarity sim, int neighbors, int maxCachedNeighborhoods) {
         super(train);
         this.sim = sim;
-        neighborhoods = new TIntObjectHashMap<>();
+        this.indexedSim = sim instanceof IIndexedSimilarity
+                          ? (IIndexedSimilarity) sim
+                          : (u, v) -> sim.compute(train.user(u), train.user(v));
+        neighborhoods = new ConcurrentIntCache<>(maxCachedNeighborhoods);
         numNeighbors = neighbors;
+        accumulators = ThreadLocal.withInitial(() -> new ScoreAccumulator(train.maxItemID() + 1));
     }
 
-    private void computeUserNeighborhood(int u) {
-        String user = train.user(u);
+    private Neighborhood computeUserNeighborhood(int u) {
+        MinHashIndex index = candidateIndex;
+        int[] candidates = index == null ? null : index.candidates(u);
+        return new Neighborhood(neighborhood(u, candidates));
+    }
 
+    // Top neighbors of u among the candidate users, or among all the users if
+    // there are no candidates
+    private Queue<SimilarUser> neighborhood(int u, int[] candidates) {
         Queue<SimilarUser> neighbors = new PriorityQueue<>(numNeighbors);
-        for (String otherUser : train.users()) {
+        int n = candidates == null ? train.maxUserID() + 1 : candidates.length;
+        for (int c = 0; c < n; c++) {
+            int v = candidates == null ? c : candidates[c];
             // Ignore target user
-            if (u == train.userId(otherUser)) {
+            if (u == v) {
                 continue;
             }
 
-            float s = sim.compute(user, otherUser);
+            float s = indexedSim.compute(u, v);
 
             if (neighbors.size() < numNeighbors) {
-                neighbors.offer(new SimilarUser(otherUser, s));
+                neighbors.offer(new SimilarUser(v, s));
             } else if (neighbors.peek().sim < s) {
                 neighbors.poll();
-                neighbors.offer(new SimilarUser(otherUser, s));
+                neighbors.offer(new SimilarUser(v, s));
             }
         }
 
-        neighborhoods.put(u, neighbors);
+        return neighbors;
     }
 
     /**
-     * @return The number of neighbors used by this User KNN recommender.
+     * Sets an index to retrieve candidate neighbors, so that only the
+     * candidates are ranked by similarity instead of all users. The index must
+     * have been built over the items of each user, and approximates the
+     * neighborhoods of a Jaccard similarity.
+     * <p>
+     * The neighborhoods computed so far are discarded. This method may only
+     * be called before serving recommendations, as neighborhoods computed
+     * concurrently may still use the previous index.
+     *
+     * @param candidateIndex Index of candidate neighbors, or <tt>null</tt> to
+     * rank all users.
      */
-    public int getNumNeighbors() {
-        return numNeighbors;
+    public void setCandidateIndex(MinHashIndex candidateIndex) {
+        this.candidateIndex = candidateIndex;
+        neighborhoods.clear();
     }
 
-    @Override
-    public float predictScore(String user, String item) {
-        // This algorithm is unable to compute predictions for unknown users
-        if (!train.containsUser(user)) {
-            return Float.NaN;
+    /**
+     * Compares the neighborhoods obtained with the candidate index with the
+     * exact ones, for a random sample of distinct users, or all of them if the
+     * sample is not smaller than the number of users.
+     *
+     * @param sampleSize Number of users in the sample.
+     * @param seed Seed of the random sample.
+     * @return The recall of the approximate neighborhoods and their cost.
+     */
+    public CandidateRecall evaluateCandidateIndex(int sampleSize, long seed) {
+        MinHashIndex index = candidateIndex;
+        if (index == null) {
+            throw new IllegalStateException("No candidate index has been set");
+        }
+
+        Random random = new Random(seed);
+        int numUsers = train.maxUserID() + 1;
+        long found = 0;
+        long relevant = 0;
+        long numCandidates = 0;
+        long exactTime = 0;
+        long approxTime = 0;
+        int sampled = Math.min(sampleSize, numUsers);
+        // Sample without replacement, with a partial Fisher-Yates shuffle
+        int[] users = IntStream.range(0, numUsers).toArray();
+        for (int n = 0; n < sampled; n++) {
+            int q = n + random.nextInt(numUsers - n);
+            int u = users[q];
+            users[q] = users[n];
+            users[n] = u;
+
+            long tic = System.nanoTime();
+            Queue<SimilarUser> exact = neighborhood(u, null);
+            exactTime += System.nanoTime() - tic;
+
+            tic = System.nanoTime();
+            int[] candidates = index.candidates(u);
+            Queue<SimilarUser> approx = neighborhood(u, candidates);
+            approxTime += System.nanoTime() - tic;
+            numCandidates += candidates.length;
+
+            // Only neighbors with some similarity are expected to be found
+            TIntSet approxUsers = new TIntHashSet();
+            approx.forEach(neighbor -> approxUsers.add(neighbor.user));
+            for (SimilarUser neighbor : exact) {
+                if (neighbor.sim > 0) {
+                    relevant++;
+                    if (approxUsers.contains(neighbor.user)) {
+                        found++;
+                    }
+                }
+            }
+        }
+
+        return new CandidateRecall(
+                relevant == 0 ? 1 : (float) found / relevant,
+                sampled == 0 ? 0 : (float) numCandidates / sampled / numUsers,
+                approxTime == 0 ? 1 : (float) exactTime / approxTime);
+    }
+
+    /**
+     * Recall and cost of the neighborhoods obtained from a candidate index.
+     */
+    public static class CandidateRecall {
+
+        private final float recall;
+        private final float candidateFraction;
+        private final float speedup;
+
+        private CandidateRecall(float recall, float candidateFraction, float speedup) {
+            this.recall = recall;
+            this.candidateFraction = candidateFraction;
+            this.speedup = speedup;
+        }
+
+        /**
+         * @return The fraction of exact neighbors with positive similarity
+         * that are also found from the candidates.
+         */
+        public float getRecall() {
+            return recall;
+        }
+
+        /**
+         * @return The average number of candidates per user, as a fraction of
+         * the number of users.
+         */
+        public float getCandidateFraction() {
+            return candidateFraction;
         }
 
-        int u = train.userId(user);
+        /**
+         * @return The time to compute the exact neighborhoods divided by the
+         * time to compute them from the candidates.
+         */
+        public float getSpeedup() {
+            return speedup;
+        }
 
-        // Compute neighborhoods on demand
-        if (!neighborhoods.containsKey(u)) {
-            computeUserNeighborhood(u);
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "recall=%.4f candidates=%.4f speedup=%.2f",
+                    recall, candidateFraction, speedup);
         }
-        Queue<SimilarUser> neighbors = neighborhoods.get(u);
+    }
+
+    /**
+     * @return The number of neighbors used by this User KNN recommender.
+     */
+    public int getNumNeighbors() {
+        return numNeighbors;
+    }
+
+    @Override
+    public float predictScore(int u, int item) {
+        // Compute neighborhoods on demand, only once per user
+        Neighborhood neighbors = neighborhoods.get(u, this::computeUserNeighborhood);
 
         float score = 0;
         boolean foundNeighbor = false;
 
         // Order of the neighbors is not important here
-        for (SimilarUser neighbor : neighbors) {
-            if (train.existsPreference(neighbor.user, item)) {
-                score += neighbor.sim;
+        for (int n = 0; n < neighbors.users.length; n++) {
+            if (train.existsPreference(neighbors.users[n], item)) {
+                score += neighbors.sims[n];
                 foundNeighbor = true;
             }
         }
@@ -94,18 +260,107 @@ public class UserKnn extends AbstractPointwiseRecommender {
         return foundNeighbor ? score : Float.NaN;
     }
 
+    /**
+     * Computes a list of recommendations by accumulating the similarities of
+     * the neighbors into the items of each neighbor, instead of predicting the
+     * score of every candidate item. The k item lists of the neighbors are
+     * read once, and then only the items reached by some neighbor are ranked.
+     * The result is the same as predicting the score of each candidate.
+     */
+    @Override
+    public RankedItems rank(int user, int howMany, int[] candidateItems) {
+        Neighborhood neighbors = neighborhoods.get(user, this::computeUserNeighborhood);
+        ScoreAccumulator acc = accumulators.get();
+
+        // Scatter the similarity of each neighbor into its items, in the same
+        // order as the neighbors are visited by predictScore
+        CsrMatrix userItems = train.userItemMatrix();
+        int[] items = userItems.indices();
+        for (int n = 0; n < neighbors.users.length; n++) {
+            int v = neighbors.users[n];
+            float s = neighbors.sims[n];
+            for (int p = userItems.start(v); p < userItems.end(v); p++) {
+                acc.add(items[p], s);
+            }
+        }
+
+        // Rank the candidates with a prediction
+        TopKHeaps selector = selector(howMany);
+        for (int item : candidateItems) {
+            // Discard items in the user's training set
+            if (!acc.found[item] || train.existsPreference(user, item)) {
+                continue;
+            }
+
+            float score = acc.scores[item];
+            selector.offer(0, item, score);
+        }
+        acc.clear();
+
+        return ranked(selector);
+    }
+
     @Override
     public String toString() {
         return "UserKNN_" + numNeighbors + "_" + sim;
     }
 
+    // Compact immutable neighborhood, with the neighbors in heap order
+    private static class Neighborhood {
+
+        final int[] users;
+        final float[] sims;
+
+        Neighborhood(Queue<SimilarUser> neighbors) {
+            users = new int[neighbors.size()];
+            sims = new float[neighbors.size()];
+            int n = 0;
+            for (SimilarUser neighbor : neighbors) {
+                users[n] = neighbor.user;
+                sims[n] = neighbor.sim;
+                n++;
+            }
+        }
+    }
+
+    // Dense item scores, with the list of items reached to reset them
+    private static class ScoreAccumulator {
+
+        final float[] scores;
+        final boolean[] found;
+        final int[] touched;
+        int numTouched;
+
+        ScoreAccumulator(int numItems) {
+            scores = new float[numItems];
+            found = new boolean[numItems];
+            touched = new int[numItems];
+        }
+
+        void add(int item, float s) {
+            if (!found[item]) {
+                found[item] = true;
+                touched[numTouched++] = item;
+            }
+            scores[item] += s;
+        }
+
+        void clear() {
+            for (int p = 0; p < numTouched; p++) {
+                scores[touched[p]] = 0;
+                found[touched[p]] = false;
+            }
+            numTouched = 0;
+        }
+    }
+
     // Class that stores (user,similarity) pairs for neighborhoods
     private class SimilarUser implements Comparable<SimilarUser> {
 
-        String user;
+        int user;
         float sim;
 
-        public SimilarUser(String user, float sim) {
+        public SimilarUser(int user, float sim) {
             this.user = user;
             this.sim = sim;
         }
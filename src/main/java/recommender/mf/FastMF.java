@@ -1,14 +1,13 @@
 package recommender.mf;
 
+import data.CsrMatrix;
 import data.PreferenceData;
 import java.util.Locale;
-import java.util.Set;
-import java.util.function.IntFunction;
-import java.util.function.ToIntFunction;
 import java.util.stream.IntStream;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.EigenDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
+import util.DenseMatrix;
 import util.MatrixUtils;
 
 /**
@@ -43,7 +42,7 @@ public class FastMF extends ImplicitMF {
      * @param lambda Regularization parameter.
      * @return The G eigenvector matrix.
      */
-    protected float[][] computeG(float[][] Q, float lambda) {
+    protected float[][] computeG(DenseMatrix Q, float lambda) {
         // Compute A0
         double[][] A = new double[numFactors][numFactors];
         MatrixUtils.transposeTimes(Q, A);
@@ -71,82 +70,136 @@ public class FastMF extends ImplicitMF {
 
     // P is the set of parameters to optimize, and Q those that are fixed
     @Override
-    protected <Q> void leastSquares(float[][] P, float[][] Q, IntFunction<Set<Q>> prefs, ToIntFunction<Q> id) {
+    protected void leastSquares(DenseMatrix P, DenseMatrix Q, CsrMatrix prefs) {
         // Compute G (not Gt, as rows are easier)
         float[][] G = computeG(Q, lambda);
         // Optimize for each user/item
-        IntStream.range(0, P.length)
+        int[] ids = prefs.indices();
+        IntStream.range(0, P.rows())
                 .parallel()
-                .forEach(u -> minimize(prefs.apply(u), id, P[u], Q, G));
+                .forEach(u -> minimize(ids, prefs.start(u), prefs.end(u), P.data(u), P.offset(u), Q, G));
     }
 
     @Override
-    protected <Q> void minimize(Set<Q> prefs, ToIntFunction<Q> id, float[] w, float[][] Q, float[][] G) {
-        int K = numFactors;
-        int N = prefs.size();
-
-        float[][] x = new float[K + N][K];
-        float[] y = new float[K + N];
-        float[] c = new float[K + N];
-
-        // First K synthetic negative implicit feedback examples
-        for (int k = 0; k < K; k++) {
-            x[k] = G[k];
-            y[k] = 0;
-            c[k] = 1;
-        }
-
-        // Merge negative implicit feedback cancelation examples and
-        // aggregation of positive implicit feedbacks
-        int j = K;
-        for (Q item : prefs) {
-            int i = id.applyAsInt(item);
-            x[j] = Q[i];
-            // Note that in our implementation we only deal with binary feedback
-            y[j] = (1 + alpha) / alpha;
-            c[j] = alpha;
-            j++;
-        }
-
+    protected void minimize(int[] prefs, int from, int to, float[] w, int wOff, DenseMatrix Q, float[][] G) {
         // Perform a single cycle of RR1
-        solveRR1(1, w, x, y, c);
+        solveRR1(w, wOff, G, Q, prefs, from, to, null, 0);
+    }
+
+    /**
+     * Performs a single cycle of RR1 over the K synthetic negative examples
+     * given by the rows of G, with <code>y = 0</code> and <code>c = 1</code>,
+     * and the positive examples given by the rows of X with ids
+     * <code>ids[from]</code> to <code>ids[to - 1]</code>, with
+     * <code>y = (1 + alpha) / alpha</code> and <code>c = alpha</code>.
+     * <p>
+     * Examples are not materialized, and the errors are kept in a per-thread
+     * buffer, so no memory is allocated. Additional quadratic regularization
+     * terms can be given, in which case each coordinate is updated as
+     * <code>w[k] = (d + num[k]) / (a + lambda + den)</code>.
+     *
+     * @param w Array with the factors to optimize.
+     * @param wOff Position of the factors within their array.
+     * @param G Rows of the synthetic negative examples.
+     * @param X Matrix with the rows of the positive examples.
+     * @param ids Array with the ids of the positive rows.
+     * @param from First position of the positive ids (inclusive).
+     * @param to Last position of the positive ids (exclusive).
+     * @param num Additional term of the numerator of each coordinate, or
+     * <tt>null</tt> if there is none.
+     * @param den Additional term of the denominator of each coordinate.
+     */
+    protected void solveRR1(float[] w, int wOff, float[][] G, DenseMatrix X, int[] ids, int from, int to, float[] num, float den) {
+        solveRR1(w, wOff, G, X, ids, from, to, num, den, null, 0);
     }
 
-    protected void solveRR1(int L, float[] w, float[][] x, float[] y, float[] c) {
-        int K = x[0].length;
-        int N = x.length;
+    /**
+     * Performs a single cycle of RR1 as in
+     * {@link #solveRR1(float[], int, float[][], util.DenseMatrix, int[], int, int, float[], float)},
+     * with an additional quadratic term <code>mu * w'Mw</code> in the loss.
+     * <p>
+     * This allows adding, in closed form, one regression example per row of a
+     * matrix Z with <code>M = Z'Z</code>, target 0 and confidence mu: the
+     * residual of the examples is not needed, as each coordinate is updated
+     * as
+     * <code>w[k] = (d + num[k] - mu * sum(M[k][l] * w[l], l != k)) / (a + lambda + den + mu * M[k][k])</code>.
+     * Non-zero targets of those examples can be given in <code>num</code>.
+     *
+     * @param w Array with the factors to optimize.
+     * @param wOff Position of the factors within their array.
+     * @param G Rows of the synthetic negative examples.
+     * @param X Matrix with the rows of the positive examples.
+     * @param ids Array with the ids of the positive rows.
+     * @param from First position of the positive ids (inclusive).
+     * @param to Last position of the positive ids (exclusive).
+     * @param num Additional term of the numerator of each coordinate, or
+     * <tt>null</tt> if there is none.
+     * @param den Additional term of the denominator of each coordinate.
+     * @param M Symmetric matrix of the additional quadratic term, or
+     * <tt>null</tt> if there is none.
+     * @param mu Weight of the additional quadratic term.
+     */
+    protected void solveRR1(float[] w, int wOff, float[][] G, DenseMatrix X, int[] ids, int from, int to, float[] num, float den, float[][] M, float mu) {
+        int K = numFactors;
+        int N = to - from;
+        float[] e = workspace.get().errors(K + N);
+        // Note that in our implementation we only deal with binary feedback
+        float y = (1 + alpha) / alpha;
 
-        // Compute all the errors
-        float[] e = new float[N];
-        for (int i = 0; i < N; i++) {
+        // Compute all the errors, synthetic examples first
+        for (int r = 0; r < K; r++) {
             float pred = 0;
             for (int k = 0; k < K; k++) {
-                pred += w[k] * x[i][k];
+                pred += w[wOff + k] * G[r][k];
             }
-            e[i] = y[i] - pred;
+            e[r] = -pred;
+        }
+        for (int p = from; p < to; p++) {
+            float pred = MatrixUtils.dotProduct(w, wOff, X.data(ids[p]), X.offset(ids[p]), K);
+            e[K + p - from] = y - pred;
         }
 
-        // Cycle RR1
-        for (int l = 0; l < L; l++) {
-            // One cycle
-            for (int k = 0; k < K; k++) {
-                // New temporary error
-                for (int i = 0; i < N; i++) {
-                    e[i] += w[k] * x[i][k];
-                }
+        // One cycle
+        for (int k = 0; k < K; k++) {
+            float wk = w[wOff + k];
+            float a = 0;
+            float d = 0;
+
+            // New temporary error, and contribution of each example
+            for (int r = 0; r < K; r++) {
+                float x = G[r][k];
+                e[r] += wk * x;
+                a += x * x;
+                d += x * e[r];
+            }
+            for (int p = from, r = K; p < to; p++, r++) {
+                float x = X.get(ids[p], k);
+                e[r] += wk * x;
+                a += alpha * x * x;
+                d += alpha * x * e[r];
+            }
 
-                float a = 0;
-                float d = 0;
-                for (int i = 0; i < N; i++) {
-                    a += c[i] * x[i][k] * x[i][k];
-                    d += c[i] * x[i][k] * e[i];
+            if (M != null) {
+                // Quadratic term with the other coordinates fixed
+                float[] Mk = M[k];
+                float cross = 0;
+                for (int l = 0; l < K; l++) {
+                    if (l != k) {
+                        cross += Mk[l] * w[wOff + l];
+                    }
                 }
-                w[k] = d / (lambda + a);
+                wk = (d + (num == null ? 0 : num[k]) - mu * cross) / (a + lambda + den + mu * Mk[k]);
+            } else {
+                wk = num == null ? d / (lambda + a) : (d + num[k]) / (a + lambda + den);
+            }
+            w[wOff + k] = wk;
 
-                // Update error
-                for (int i = 0; i < N; i++) {
-                    e[i] -= w[k] * x[i][k];
-                }
+            // Update error
+            for (int r = 0; r < K; r++) {
+                e[r] -= wk * G[r][k];
+            }
+            for (int p = from, r = K; p < to; p++, r++) {
+                e[r] -= wk * X.get(ids[p], k);
             }
         }
     }
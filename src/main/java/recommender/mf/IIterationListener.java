@@ -0,0 +1,19 @@
+package recommender.mf;
+
+/**
+ * Listener notified after each training iteration of an MF algorithm, e.g.
+ * to log or monitor the convergence.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+@FunctionalInterface
+public interface IIterationListener {
+
+    /**
+     * Receives the statistics of a finished iteration.
+     *
+     * @param stats Statistics of the iteration.
+     */
+    void iterationFinished(IterationStats stats);
+}
@@ -0,0 +1,33 @@
+package recommender.mf;
+
+/**
+ * Policy that decides when to stop training an MF algorithm before the
+ * maximum number of iterations.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public interface IStoppingPolicy {
+
+    /**
+     * Resets the state of this policy when a new training starts.
+     */
+    void start();
+
+    /**
+     * Decides whether to stop training after an iteration.
+     *
+     * @param model Model being trained, with the factors of the iteration.
+     * @param stats Statistics of the iteration.
+     * @return True iff no more iterations should be run.
+     */
+    boolean shouldStop(MFRecommender model, IterationStats stats);
+
+    /**
+     * @return True iff this policy reads the loss of each iteration, so that
+     * it must be computed.
+     */
+    default boolean needsLoss() {
+        return false;
+    }
+}
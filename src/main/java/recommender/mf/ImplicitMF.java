@@ -1,14 +1,11 @@
 package recommender.mf;
 
+import data.CsrMatrix;
 import data.PreferenceData;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Set;
-import java.util.function.IntFunction;
-import java.util.function.ToIntFunction;
 import java.util.stream.IntStream;
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.LUDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
+import util.DenseMatrix;
 import util.MatrixUtils;
 
 /**
@@ -23,14 +20,42 @@ import util.MatrixUtils;
  * each rating is assumed to be as in the paper:
  * <p>
  * <code>c(u,i) = 1 + alpha * r(u,i)</code>
+ * <p>
+ * Each least squares problem can be solved exactly, or approximately with a
+ * few steps of the conjugate gradient method warm-started from the current
+ * factors, as proposed in:
+ * <p>
+ * <code>Takács, G., Pilászy, I., Tikk, D.: Applications of the conjugate
+ * gradient method for implicit feedback collaborative filtering. RecSys
+ * 2011</code>
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
  */
 public class ImplicitMF extends MFRecommender {
 
+    /**
+     * Methods to solve the least squares problem of each user/item.
+     */
+    public enum Solver {
+        /**
+         * Exact solution by Cholesky decomposition, O(k^3) per user/item.
+         */
+        CHOLESKY,
+        /**
+         * Approximate solution with a fixed number of conjugate gradient
+         * steps, O(k^2) per user/item and step.
+         */
+        CONJUGATE_GRADIENT
+    }
+
     // Confidence parameter for unobserved interactions
     protected float alpha;
+    // Least squares solver, and number of steps when using CG
+    protected Solver solver;
+    protected int numCGSteps;
+    // Reusable buffers for each training thread
+    protected final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(Workspace::new);
 
     /**
      * Create a new instance of the matrix factorization algorithm for positive-
@@ -45,6 +70,8 @@ public class ImplicitMF extends MFRecommender {
         debug = false;
         // Default in MML
         alpha = 1;
+        solver = Solver.CHOLESKY;
+        numCGSteps = 3;
     }
 
     /**
@@ -65,28 +92,73 @@ public class ImplicitMF extends MFRecommender {
         this.alpha = alpha;
     }
 
+    /**
+     * @return The method used to solve each least squares problem.
+     */
+    public Solver getSolver() {
+        return solver;
+    }
+
+    /**
+     * Changes the method used to solve each least squares problem.
+     *
+     * @param solver New least squares solver.
+     */
+    public void setSolver(Solver solver) {
+        this.solver = solver;
+    }
+
+    /**
+     * @return The number of conjugate gradient steps per user/item and
+     * iteration.
+     */
+    public int getNumCGSteps() {
+        return numCGSteps;
+    }
+
+    /**
+     * Changes the number of conjugate gradient steps per user/item and
+     * iteration, only used with the {@link Solver#CONJUGATE_GRADIENT CG}
+     * solver.
+     *
+     * @param numCGSteps New number of conjugate gradient steps.
+     */
+    public void setNumCGSteps(int numCGSteps) {
+        this.numCGSteps = numCGSteps;
+    }
+
     /**
      * Computes the loss function over the training set for the current state of
      * the model.
      * <p>
-     * Note that this method iterates over all possible (user, item) pairs and
-     * is likely to take some time.
+     * The loss is defined over all (user, item) pairs, but it is computed from
+     * the Gram matrices of the user and item factors plus a correction of the
+     * observed pairs, in <code>O((U + I) k^2 + nnz k)</code> time, so it is
+     * cheap enough to be monitored after every iteration.
      *
      * @return The value of the loss function over the training set for the
      * current state of the model.
      */
     public float computeLoss() {
-        // Loss function is defined over all (user, item) pairs
-        double loss = train.users().stream()
+        // Loss function is defined over all (user, item) pairs. With all
+        // preferences 0, it is the sum of all the squared predictions, i.e.
+        // trace(P'P Q'Q), which only needs the Gram matrices
+        double[][] userGram = new double[numFactors][numFactors];
+        double[][] itemGram = new double[numFactors][numFactors];
+        MatrixUtils.transposeTimes(userFactors, u -> true, userGram);
+        MatrixUtils.transposeTimes(itemFactors, i -> true, itemGram);
+        double loss = MatrixUtils.traceProduct(userGram, itemGram);
+
+        // Then correct the observed pairs, with confidence 1 + alpha
+        CsrMatrix prefs = train.userItemMatrix();
+        int[] items = prefs.indices();
+        loss += train.userIds()
                 .parallel()
-                .mapToDouble(user -> {
-                    float userLoss = 0;
-                    for (String item : train.items()) {
-                        float p = train.existsPreference(user, item) ? 1f : 0;
-                        float c = 1 + alpha * p;
-
-                        float err = p - predictScore(user, item);
-                        userLoss += c * err * err;
+                .mapToDouble(u -> {
+                    double userLoss = 0;
+                    for (int p = prefs.start(u); p < prefs.end(u); p++) {
+                        float s = predictScore(u, items[p]);
+                        userLoss += (1 + alpha) * (1 - s) * (1 - s) - s * s;
                     }
                     return userLoss;
                 })
@@ -103,98 +175,252 @@ public class ImplicitMF extends MFRecommender {
     }
 
     /**
-     * Trains this implicit MF algorithm using ALS.
+     * Trains this implicit MF algorithm using ALS, for the maximum number of
+     * iterations or until a stopping policy decides to stop.
      */
     @Override
     public void train() {
         init();
-        // Perform ALS for a fixed number of iterations
+        stoppingPolicies.forEach(IStoppingPolicy::start);
+        // The loss is only computed if someone reads it
+        boolean needsLoss = debug || !listeners.isEmpty()
+                || stoppingPolicies.stream().anyMatch(IStoppingPolicy::needsLoss);
+        boolean needsStats = !listeners.isEmpty() || !stoppingPolicies.isEmpty();
+
+        // Perform ALS for at most numIterations
+        long start = System.currentTimeMillis();
         for (int iter = 0; iter < numIterations; iter++) {
             long tic = System.currentTimeMillis();
 
             // P step: fix item factors, optimize user factors
             userLeastSquares();
+            long tac = System.currentTimeMillis();
             // Q step: fix user factors, optimize item factors
             itemLeastSquares();
+            long toc = System.currentTimeMillis();
 
-            float time = (System.currentTimeMillis() - tic) / 1000f;
+            float time = (toc - tic) / 1000f;
+            float loss = needsLoss ? computeLoss() : Float.NaN;
             if (debug) {
-                System.err.println("\t# " + (iter + 1) + "\tTime = " + time + "\tLoss = " + computeLoss());
+                System.err.println("\t# " + (iter + 1) + "\tTime = " + time + "\tLoss = " + loss);
             } else {
                 System.err.println("\t# " + (iter + 1) + "\tTime = " + time);
             }
+
+            if (needsStats) {
+                float userNorm = MatrixUtils.norm2(userFactors);
+                float itemNorm = MatrixUtils.norm2(itemFactors);
+                // Measured after the loss, so that its time is also accounted
+                float totalTime = (System.currentTimeMillis() - start) / 1000f;
+                IterationStats stats = new IterationStats(iter + 1, (tac - tic) / 1000f, (toc - tac) / 1000f,
+                        totalTime, loss, userNorm, itemNorm);
+                listeners.forEach(listener -> listener.iterationFinished(stats));
+                // Ask all the policies, as they may keep track of each iteration
+                boolean stop = false;
+                for (IStoppingPolicy policy : stoppingPolicies) {
+                    stop |= policy.shouldStop(this, stats);
+                }
+                if (stop) {
+                    System.err.println("\tStopped after " + (iter + 1) + " iterations");
+                    break;
+                }
+            }
         }
     }
 
     protected void userLeastSquares() {
-        leastSquares(userFactors, itemFactors, u -> train.userItems(train.user(u)), train::itemId);
+        leastSquares(userFactors, itemFactors, train.userItemMatrix());
     }
 
     protected void itemLeastSquares() {
-        leastSquares(itemFactors, userFactors, i -> train.itemUsers(train.item(i)), train::userId);
+        leastSquares(itemFactors, userFactors, train.itemUserMatrix());
     }
 
-    protected <Q> void leastSquares(float[][] P, float[][] Q, IntFunction<Set<Q>> prefs, ToIntFunction<Q> qId) {
+    // Rows of prefs are the P elements, columns the ids of the Q elements
+    protected void leastSquares(DenseMatrix P, DenseMatrix Q, CsrMatrix prefs) {
         // Notation: optimize P, fixed is Q
         // Compute Q'Q
         float[][] QtQ = MatrixUtils.transposeTimes(Q);
         // Optimize each P
-        IntStream.range(0, P.length)
+        int[] ids = prefs.indices();
+        IntStream.range(0, P.rows())
                 .parallel()
-                .forEach(p -> minimize(prefs.apply(p), qId, P[p], Q, QtQ));
+                .forEach(p -> minimize(ids, prefs.start(p), prefs.end(p), P.data(p), P.offset(p), Q, QtQ));
     }
 
-    protected <Q> void minimize(Set<Q> data, ToIntFunction<Q> qId, float[] w, float[][] Q, float[][] QtQ) {
-        // Compute Q'CuQ + reg*I = Q'Q + Q'(Cu - I)Q + reg*I
-        double[][] QtCQ = new double[numFactors][numFactors];
-        for (int k1 = 0; k1 < numFactors; k1++) {
-            for (int k2 = k1; k2 < numFactors; k2++) {
-                float s = 0;
-                // If Rui = 0, then Cuii - 1 = 0
-                for (Q q : data) {
-                    int i = qId.applyAsInt(q);
-                    s += Q[i][k2] * Q[i][k1];
-                }
-                QtCQ[k1][k2] = QtQ[k1][k2] + s * alpha;
-                QtCQ[k2][k1] = QtQ[k2][k1] + s * alpha;
+    // The ids of the observed Q elements are in data[from] to data[to - 1],
+    // and the vector to optimize starts at w[wOff]
+    protected void minimize(int[] data, int from, int to, float[] w, int wOff, DenseMatrix Q, float[][] QtQ) {
+        if (solver == Solver.CONJUGATE_GRADIENT) {
+            minimizeCG(data, from, to, w, wOff, Q, QtQ);
+            return;
+        }
+
+        int K = numFactors;
+        Workspace ws = workspace.get().ensureCapacity(K);
+        double[] A = ws.A;
+        double[] b = ws.b;
+        Arrays.fill(A, 0);
+        Arrays.fill(b, 0);
 
-                // Add regularization
-                if (k1 == k2) {
-                    QtCQ[k1][k2] += lambda;
+        // Accumulate Q'(Cu - I)Q and Q'Cp one observed row at a time.
+        // If Rui = 0, then Cuii - 1 = 0, and only the lower triangle of the
+        // symmetric matrix is required
+        for (int p = from; p < to; p++) {
+            float[] q = Q.data(data[p]);
+            int qOff = Q.offset(data[p]);
+            for (int k1 = 0; k1 < K; k1++) {
+                float q1 = q[qOff + k1];
+                for (int k2 = 0; k2 <= k1; k2++) {
+                    A[k1 * K + k2] += q1 * q[qOff + k2];
                 }
+                b[k1] += q1;
             }
         }
 
-        // Compute Q'Cp
-        // Size: k x |I| · |I| x |I| · |I| x 1 = k x 1
-        float[] QCp = new float[numFactors];
-        for (int k = 0; k < numFactors; k++) {
-            float s = 0;
-            for (Q q : data) {
-                int i = qId.applyAsInt(q);
-                s += Q[i][k];
+        // Compute Q'CuQ + reg*I = Q'Q + Q'(Cu - I)Q + reg*I
+        // Size of Q'Cp: k x |I| · |I| x |I| · |I| x 1 = k x 1
+        for (int k1 = 0; k1 < K; k1++) {
+            for (int k2 = 0; k2 <= k1; k2++) {
+                A[k1 * K + k2] = QtQ[k1][k2] + alpha * A[k1 * K + k2];
             }
-            QCp[k] = s * (1 + alpha);
+            // Add regularization
+            A[k1 * K + k1] += lambda;
+            b[k1] *= 1 + alpha;
         }
 
-        // Compute the inverse of the matrix through LU decomposition
-        RealMatrix M = new Array2DRowRealMatrix(QtCQ, false);
-        LUDecomposition lu = new LUDecomposition(M);
-        RealMatrix Minv = lu.getSolver().getInverse();
+        // The system is symmetric positive definite, solve w = A^-1 * Q'Cp
+        // in place by Cholesky decomposition
+        MatrixUtils.choleskySolve(A, b, K);
+        for (int k = 0; k < K; k++) {
+            w[wOff + k] = (float) b[k];
+        }
+    }
 
-        // Update the user vector
-        // w = Minv * Q'Cp
-        for (int k1 = 0; k1 < numFactors; k1++) {
-            float s = 0;
-            for (int k2 = 0; k2 < numFactors; k2++) {
-                s += Minv.getEntry(k1, k2) * QCp[k2];
+    // Warm-started CG on (Q'Q + reg*I + Q'(Cu - I)Q) w = Q'Cp. Q'Q is shared
+    // by all users/items, so only the observed rows are visited per product
+    protected void minimizeCG(int[] data, int from, int to, float[] w, int wOff, DenseMatrix Q, float[][] QtQ) {
+        int K = numFactors;
+        Workspace ws = workspace.get().ensureCapacity(K);
+        double[] x = ws.x;
+        double[] r = ws.r;
+        double[] d = ws.d;
+        double[] Ad = ws.Ad;
+
+        // Residual r = Q'Cp - A w
+        for (int k = 0; k < K; k++) {
+            x[k] = w[wOff + k];
+        }
+        multiplyA(data, from, to, Q, QtQ, x, r);
+        Arrays.fill(d, 0);
+        for (int p = from; p < to; p++) {
+            float[] q = Q.data(data[p]);
+            int qOff = Q.offset(data[p]);
+            for (int k = 0; k < K; k++) {
+                d[k] += q[qOff + k];
             }
-            w[k1] = (float) s;
+        }
+        double rr = 0;
+        for (int k = 0; k < K; k++) {
+            r[k] = (1 + alpha) * d[k] - r[k];
+            d[k] = r[k];
+            rr += r[k] * r[k];
+        }
+
+        for (int step = 0; step < numCGSteps && rr > 0; step++) {
+            multiplyA(data, from, to, Q, QtQ, d, Ad);
+            double dAd = 0;
+            for (int k = 0; k < K; k++) {
+                dAd += d[k] * Ad[k];
+            }
+
+            double a = rr / dAd;
+            double rrNew = 0;
+            for (int k = 0; k < K; k++) {
+                x[k] += a * d[k];
+                r[k] -= a * Ad[k];
+                rrNew += r[k] * r[k];
+            }
+
+            double beta = rrNew / rr;
+            for (int k = 0; k < K; k++) {
+                d[k] = r[k] + beta * d[k];
+            }
+            rr = rrNew;
+        }
+
+        for (int k = 0; k < K; k++) {
+            w[wOff + k] = (float) x[k];
+        }
+    }
+
+    // Computes out = (Q'Q + reg*I + alpha * sum of q q' over observed q) v
+    private void multiplyA(int[] data, int from, int to, DenseMatrix Q, float[][] QtQ, double[] v, double[] out) {
+        int K = numFactors;
+        for (int k1 = 0; k1 < K; k1++) {
+            double s = lambda * v[k1];
+            for (int k2 = 0; k2 < K; k2++) {
+                s += QtQ[k1][k2] * v[k2];
+            }
+            out[k1] = s;
+        }
+
+        for (int p = from; p < to; p++) {
+            float[] q = Q.data(data[p]);
+            int qOff = Q.offset(data[p]);
+            double qv = 0;
+            for (int k = 0; k < K; k++) {
+                qv += q[qOff + k] * v[k];
+            }
+            qv *= alpha;
+            for (int k = 0; k < K; k++) {
+                out[k] += qv * q[qOff + k];
+            }
+        }
+    }
+
+    // Per-thread buffers for the problems solved in minimize()
+    protected static class Workspace {
+
+        // Normal equations
+        public double[] A = new double[0];
+        public double[] b = new double[0];
+        // Conjugate gradient vectors
+        public double[] x = new double[0];
+        public double[] r = new double[0];
+        public double[] d = new double[0];
+        public double[] Ad = new double[0];
+        // RR1 errors and cross-domain terms
+        public float[] errors = new float[0];
+        public float[] cross = new float[0];
+
+        public Workspace ensureCapacity(int numFactors) {
+            if (b.length != numFactors) {
+                A = new double[numFactors * numFactors];
+                b = new double[numFactors];
+                x = new double[numFactors];
+                r = new double[numFactors];
+                d = new double[numFactors];
+                Ad = new double[numFactors];
+                cross = new float[numFactors];
+            }
+            return this;
+        }
+
+        public float[] errors(int size) {
+            if (errors.length < size) {
+                errors = new float[Math.max(size, 2 * errors.length)];
+            }
+            return errors;
         }
     }
 
     @Override
     public String toString() {
+        if (solver == Solver.CONJUGATE_GRADIENT) {
+            return String.format(Locale.ENGLISH, "iMF_k=%d_l=%s_c=%s_n=%d_cg=%d",
+                    numFactors, lambda, alpha, numIterations, numCGSteps);
+        }
         return String.format(Locale.ENGLISH, "iMF_k=%d_l=%s_c=%s_n=%d",
                 numFactors, lambda, alpha, numIterations);
     }
@@ -0,0 +1,87 @@
+package recommender.mf;
+
+import java.util.Locale;
+
+/**
+ * Statistics of a training iteration of an MF algorithm.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class IterationStats {
+
+    private final int iteration;
+    private final float userTime;
+    private final float itemTime;
+    private final float totalTime;
+    private final float loss;
+    private final float userNorm;
+    private final float itemNorm;
+
+    IterationStats(int iteration, float userTime, float itemTime, float totalTime, float loss, float userNorm, float itemNorm) {
+        this.iteration = iteration;
+        this.userTime = userTime;
+        this.itemTime = itemTime;
+        this.totalTime = totalTime;
+        this.loss = loss;
+        this.userNorm = userNorm;
+        this.itemNorm = itemNorm;
+    }
+
+    /**
+     * @return The number of the iteration, starting at 1.
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * @return The time to update the user factors, in seconds.
+     */
+    public float getUserTime() {
+        return userTime;
+    }
+
+    /**
+     * @return The time to update the item factors, in seconds.
+     */
+    public float getItemTime() {
+        return itemTime;
+    }
+
+    /**
+     * @return The time since the training started, in seconds, including the
+     * computation of the loss and the stopping policies of the previous
+     * iterations.
+     */
+    public float getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * @return The value of the loss function after the iteration.
+     */
+    public float getLoss() {
+        return loss;
+    }
+
+    /**
+     * @return The squared Frobenius norm of the user factors.
+     */
+    public float getUserNorm() {
+        return userNorm;
+    }
+
+    /**
+     * @return The squared Frobenius norm of the item factors.
+     */
+    public float getItemNorm() {
+        return itemNorm;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "iter=%d userTime=%.3f itemTime=%.3f loss=%s userNorm=%s itemNorm=%s",
+                iteration, userTime, itemTime, loss, userNorm, itemNorm);
+    }
+}
@@ -0,0 +1,43 @@
+package recommender.mf;
+
+/**
+ * Stops training when the relative improvement of the loss in an iteration
+ * falls below a threshold.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class LossImprovementStopping implements IStoppingPolicy {
+
+    private final float minImprovement;
+    private float previousLoss;
+
+    /**
+     * Creates a new policy with the given threshold.
+     *
+     * @param minImprovement Minimum relative decrease of the loss, e.g. 0.001
+     * for a 0.1%.
+     */
+    public LossImprovementStopping(float minImprovement) {
+        this.minImprovement = minImprovement;
+    }
+
+    @Override
+    public void start() {
+        previousLoss = Float.NaN;
+    }
+
+    @Override
+    public boolean shouldStop(MFRecommender model, IterationStats stats) {
+        float loss = stats.getLoss();
+        boolean stop = !Float.isNaN(previousLoss)
+                && (previousLoss - loss) / Math.abs(previousLoss) < minImprovement;
+        previousLoss = loss;
+        return stop;
+    }
+
+    @Override
+    public boolean needsLoss() {
+        return true;
+    }
+}
@@ -1,8 +1,17 @@
 package recommender.mf;
 
+import data.CsrMatrix;
 import data.PreferenceData;
+import data.RankedItems;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
 import recommender.AbstractPointwiseRecommender;
+import util.DenseMatrix;
 import util.MatrixUtils;
+import util.TopKHeaps;
 
 /**
  * Abstract class for MF-based algorithms.
@@ -12,9 +21,9 @@ import util.MatrixUtils;
  */
 public abstract class MFRecommender extends AbstractPointwiseRecommender {
 
-    // Latent factors, row-wise
-    protected float[][] userFactors;
-    protected float[][] itemFactors;
+    // Latent factors, row-wise in flat arrays with a stride of numFactors
+    protected DenseMatrix userFactors;
+    protected DenseMatrix itemFactors;
     // Number of latent factors
     protected int numFactors;
     // Learning parameters
@@ -22,9 +31,27 @@ public abstract class MFRecommender extends AbstractPointwiseRecommender {
     protected float lambda;
     // Show learning information
     protected boolean debug;
+    // Observers of the training iterations, and policies to stop before
+    // numIterations
+    protected final List<IIterationListener> listeners = new ArrayList<>();
+    protected final List<IStoppingPolicy> stoppingPolicies = new ArrayList<>();
     // Parameters for random initialization
     protected static final float INIT_MEAN = 0;
     protected static final float INIT_STD = 0.1f;
+    // Tile sizes of batch scoring, so that a tile of item factors stays in
+    // cache while it is multiplied by a block of users
+    private static final int USER_BLOCK = 64;
+    private static final int ITEM_TILE = 256;
+    // Optional index for approximate recommendations
+    private MipsIndex mipsIndex;
+    // Sorted copy of the last candidate items, to filter the index results
+    private volatile int[][] sortedCandidates;
+    // Optional quantized item factors to select shortlists, and the size of
+    // the shortlists relative to the size of the recommendation lists
+    private QuantizedFactors quantizedItemFactors;
+    private int shortlistFactor;
+    // Per-thread shortlist selector
+    private final ThreadLocal<TopKHeaps> shortlists = new ThreadLocal<>();
 
     public MFRecommender(PreferenceData train) {
         super(train);
@@ -37,8 +64,8 @@ public abstract class MFRecommender extends AbstractPointwiseRecommender {
 
     protected void init() {
         // Create matrices U x k and I x k to hold latent factors
-        userFactors = new float[train.maxUserID() + 1][numFactors];
-        itemFactors = new float[train.maxItemID() + 1][numFactors];
+        userFactors = new DenseMatrix(train.maxUserID() + 1, numFactors);
+        itemFactors = new DenseMatrix(train.maxItemID() + 1, numFactors);
         // Initialize factors randomly
         MatrixUtils.setRandGaussian(userFactors, INIT_MEAN, INIT_STD);
         MatrixUtils.setRandGaussian(itemFactors, INIT_MEAN, INIT_STD);
@@ -47,15 +74,326 @@ public abstract class MFRecommender extends AbstractPointwiseRecommender {
     public abstract void train();
 
     @Override
-    public float predictScore(String user, String item) {
-        // If the user or the item is unknown, we cannot compute a prediction
-        if (!train.users().contains(user) || !train.items().contains(item)) {
-            return Float.NaN;
+    public float predictScore(int user, int item) {
+        return userFactors.dot(user, itemFactors, item);
+    }
+
+    /**
+     * Builds an index of the given items over the current item factors, and
+     * uses it for the following recommendations. The index must be rebuilt
+     * after training again.
+     *
+     * @param items Internal ids of the items to index, e.g. the candidate
+     * items.
+     * @param numLists Number of inverted lists of the index.
+     * @param numProbes Number of lists scanned for each user.
+     * @return The new index.
+     */
+    public MipsIndex buildMipsIndex(int[] items, int numLists, int numProbes) {
+        MipsIndex index = new MipsIndex(itemFactors, items, numLists, MatrixUtils.RAND_SEED);
+        index.setNumProbes(numProbes);
+        setMipsIndex(index);
+        return index;
+    }
+
+    /**
+     * Sets an index to compute approximate recommendations, which only scores
+     * the candidate items retrieved by the index instead of all of them. It
+     * cannot be combined with quantized item factors.
+     *
+     * @param mipsIndex Index of the item factors, or <tt>null</tt> to score
+     * all the candidate items.
+     * @throws IllegalStateException If quantized item factors are set.
+     */
+    public void setMipsIndex(MipsIndex mipsIndex) {
+        if (mipsIndex != null && quantizedItemFactors != null) {
+            throw new IllegalStateException("An index cannot be combined with quantized item factors");
+        }
+        this.mipsIndex = mipsIndex;
+    }
+
+    /**
+     * Exports the current item factors quantized to 8-bit integers.
+     *
+     * @return The quantized item factors.
+     */
+    public QuantizedFactors quantizeItemFactors() {
+        return new QuantizedFactors(itemFactors);
+    }
+
+    /**
+     * Sets quantized item factors to score the candidate items, so that only
+     * a shortlist of the best items by approximate score is re-ranked with
+     * the full precision factors. They cannot be combined with an index.
+     *
+     * @param quantizedItemFactors Quantized item factors, or <tt>null</tt> to
+     * score with the full precision factors only.
+     * @param shortlistFactor Size of the shortlists, as a multiple of the
+     * size of the recommendation lists.
+     * @throws IllegalStateException If an index is set.
+     */
+    public void setQuantizedItemFactors(QuantizedFactors quantizedItemFactors, int shortlistFactor) {
+        if (quantizedItemFactors != null && mipsIndex != null) {
+            throw new IllegalStateException("Quantized item factors cannot be combined with an index");
+        }
+        this.quantizedItemFactors = quantizedItemFactors;
+        this.shortlistFactor = Math.max(1, shortlistFactor);
+    }
+
+    /**
+     * Computes a list of recommendations, from the candidate items retrieved
+     * by the {@link #setMipsIndex(recommender.mf.MipsIndex) index} if set, or
+     * else from the shortlist of the
+     * {@link #setQuantizedItemFactors(recommender.mf.QuantizedFactors, int)
+     * quantized item factors} if set.
+     */
+    @Override
+    public RankedItems rank(int user, int howMany, int[] candidateItems) {
+        if (mipsIndex != null) {
+            TopKHeaps selector = selector(howMany);
+            search(user, candidateItems, selector);
+            return ranked(selector);
+        }
+        if (quantizedItemFactors != null) {
+            return rankQuantized(user, howMany, candidateItems);
+        }
+        return super.rank(user, howMany, candidateItems);
+    }
+
+    private RankedItems rankQuantized(int user, int howMany, int[] candidateItems) {
+        int size = howMany * shortlistFactor;
+        TopKHeaps shortlist = shortlists.get();
+        if (shortlist == null || shortlist.capacity() != size) {
+            shortlist = new TopKHeaps(size, 1);
+            shortlists.set(shortlist);
+        }
+        shortlist.clear(0);
+
+        // Shortlist by approximate score
+        float[] data = userFactors.data(user);
+        int off = userFactors.offset(user);
+        for (int item : candidateItems) {
+            // Discard items in the user's training set
+            if (!train.existsPreference(user, item)) {
+                shortlist.offer(0, item, quantizedItemFactors.dot(item, data, off));
+            }
         }
 
-        int u = train.userId(user);
-        int i = train.itemId(item);
-        return MatrixUtils.dotProduct(userFactors[u], itemFactors[i]);
+        // Re-rank with full precision
+        TopKHeaps selector = selector(howMany);
+        for (int p = 0; p < shortlist.size(0); p++) {
+            int item = shortlist.id(0, p);
+            selector.offer(0, item, predictScore(user, item));
+        }
+        return ranked(selector);
+    }
+
+    // Offers the candidate items retrieved by the index, and returns the
+    // number of items scanned
+    private int search(int user, int[] candidateItems, TopKHeaps selector) {
+        int[][] cached = sortedCandidates;
+        if (cached == null || cached[0] != candidateItems) {
+            int[] sorted = candidateItems.clone();
+            Arrays.sort(sorted);
+            cached = new int[][]{candidateItems, sorted};
+            sortedCandidates = cached;
+        }
+        int[] sorted = cached[1];
+
+        return mipsIndex.search(userFactors.data(user), userFactors.offset(user), selector, 0,
+                item -> Arrays.binarySearch(sorted, item) >= 0 && !train.existsPreference(user, item));
+    }
+
+    /**
+     * Compares the recommendations obtained with the index with the exact
+     * ones, for a random sample of distinct users, or all of them if the
+     * sample is not smaller than the number of users.
+     *
+     * @param sampleSize Number of users in the sample.
+     * @param howMany Size of the recommendation lists.
+     * @param candidateItems Internal ids of the possible items to be
+     * recommended.
+     * @param seed Seed of the random sample.
+     * @return The recall of the approximate recommendations and their cost.
+     */
+    public MipsIndex.Recall evaluateMipsIndex(int sampleSize, int howMany, int[] candidateItems, long seed) {
+        if (mipsIndex == null) {
+            throw new IllegalStateException("No index has been set");
+        }
+
+        Random random = new Random(seed);
+        int numUsers = train.maxUserID() + 1;
+        long found = 0;
+        long relevant = 0;
+        long scanned = 0;
+        long exactTime = 0;
+        long approxTime = 0;
+        int sampled = Math.min(sampleSize, numUsers);
+        // Sample without replacement, with a partial Fisher-Yates shuffle
+        int[] users = IntStream.range(0, numUsers).toArray();
+        for (int n = 0; n < sampled; n++) {
+            int q = n + random.nextInt(numUsers - n);
+            int u = users[q];
+            users[q] = users[n];
+            users[n] = u;
+
+            long tic = System.nanoTime();
+            RankedItems exact = super.rank(u, howMany, candidateItems);
+            exactTime += System.nanoTime() - tic;
+
+            tic = System.nanoTime();
+            TopKHeaps selector = selector(howMany);
+            scanned += search(u, candidateItems, selector);
+            RankedItems approx = ranked(selector);
+            approxTime += System.nanoTime() - tic;
+
+            int[] approxItems = new int[approx.size()];
+            for (int p = 0; p < approx.size(); p++) {
+                approxItems[p] = approx.item(p);
+            }
+            Arrays.sort(approxItems);
+            for (int p = 0; p < exact.size(); p++) {
+                relevant++;
+                if (Arrays.binarySearch(approxItems, exact.item(p)) >= 0) {
+                    found++;
+                }
+            }
+        }
+
+        return new MipsIndex.Recall(
+                relevant == 0 ? 1 : (float) found / relevant,
+                sampled == 0 || mipsIndex.numItems() == 0 ? 0 : (float) scanned / sampled / mipsIndex.numItems(),
+                approxTime == 0 ? 1 : (float) exactTime / approxTime);
+    }
+
+    /**
+     * Computes the recommendations for a batch of users at once, as the
+     * product of the block of user factors and the factors of the candidate
+     * items.
+     * <p>
+     * The candidate item factors are packed into a contiguous matrix, and
+     * users are processed in parallel blocks. For each block, the product is
+     * computed by tiles of items that fit in cache, and the scores of each
+     * tile are offered to the top-N heaps of the users, skipping their
+     * training items. The scores and lists are the same as those of
+     * {@link #rank(int, int, int[]) rank()} for each user. If an index is
+     * set, or quantized item factors, the users are instead ranked
+     * independently in parallel.
+     *
+     * @param users Internal ids of the target users.
+     * @param howMany Maximum size of the recommendation lists.
+     * @param candidateItems Internal ids of the possible items to be
+     * recommended.
+     * @return The recommended items for each user, in the same order as the
+     * users.
+     */
+    public RankedItems[] rankBatch(int[] users, int howMany, int[] candidateItems) {
+        if (mipsIndex != null || quantizedItemFactors != null) {
+            RankedItems[] lists = new RankedItems[users.length];
+            IntStream.range(0, users.length)
+                    .parallel()
+                    .forEach(u -> lists[u] = rank(users[u], howMany, candidateItems));
+            return lists;
+        }
+
+        // Sorted candidates allow merging them with the training items
+        int[] candidates = candidateItems.clone();
+        Arrays.sort(candidates);
+        int numCandidates = candidates.length;
+        float[] panel = new float[numCandidates * numFactors];
+        for (int c = 0; c < numCandidates; c++) {
+            System.arraycopy(itemFactors.data(candidates[c]), itemFactors.offset(candidates[c]), panel, c * numFactors, numFactors);
+        }
+
+        RankedItems[] lists = new RankedItems[users.length];
+        int numBlocks = (users.length + USER_BLOCK - 1) / USER_BLOCK;
+        IntStream.range(0, numBlocks)
+                .parallel()
+                .forEach(b -> {
+                    int from = b * USER_BLOCK;
+                    int to = Math.min(users.length, from + USER_BLOCK);
+                    rankBlock(users, from, to, howMany, candidates, panel, lists);
+                });
+
+        return lists;
+    }
+
+    // Computes the lists of the users between the given positions
+    private void rankBlock(int[] users, int from, int to, int howMany, int[] candidates, float[] panel, RankedItems[] lists) {
+        int n = to - from;
+        int numCandidates = candidates.length;
+        CsrMatrix userItems = train.userItemMatrix();
+        int[] items = userItems.indices();
+
+        // Pack the block of user factors
+        float[] block = new float[n * numFactors];
+        for (int u = 0; u < n; u++) {
+            System.arraycopy(userFactors.data(users[from + u]), userFactors.offset(users[from + u]), block, u * numFactors, numFactors);
+        }
+
+        // Next training item of each user to be skipped
+        int[] next = new int[n];
+        for (int u = 0; u < n; u++) {
+            next[u] = userItems.start(users[from + u]);
+        }
+
+        TopKHeaps heaps = new TopKHeaps(howMany, n);
+        float[] scores = new float[ITEM_TILE];
+        for (int tile = 0; tile < numCandidates; tile += ITEM_TILE) {
+            int tileEnd = Math.min(numCandidates, tile + ITEM_TILE);
+            for (int u = 0; u < n; u++) {
+                multiply(block, u * numFactors, panel, tile, tileEnd, scores);
+
+                int end = userItems.end(users[from + u]);
+                int p = next[u];
+                for (int c = tile; c < tileEnd; c++) {
+                    int item = candidates[c];
+                    // Skip the training items of the user
+                    while (p < end && items[p] < item) {
+                        p++;
+                    }
+                    if (p < end && items[p] == item) {
+                        continue;
+                    }
+                    heaps.offer(u, item, scores[c - tile]);
+                }
+                next[u] = p;
+            }
+        }
+
+        for (int u = 0; u < n; u++) {
+            lists[from + u] = ranked(heaps, u);
+        }
+    }
+
+    // Scores of a user for a tile of candidates, four at a time. Each dot
+    // product is accumulated in the order of the factors, as in predictScore
+    private void multiply(float[] block, int uOff, float[] panel, int tile, int tileEnd, float[] scores) {
+        int c = tile;
+        for (; c + 4 <= tileEnd; c += 4) {
+            int off0 = c * numFactors;
+            int off1 = off0 + numFactors;
+            int off2 = off1 + numFactors;
+            int off3 = off2 + numFactors;
+            float s0 = 0;
+            float s1 = 0;
+            float s2 = 0;
+            float s3 = 0;
+            for (int k = 0; k < numFactors; k++) {
+                float x = block[uOff + k];
+                s0 += x * panel[off0 + k];
+                s1 += x * panel[off1 + k];
+                s2 += x * panel[off2 + k];
+                s3 += x * panel[off3 + k];
+            }
+            scores[c - tile] = s0;
+            scores[c - tile + 1] = s1;
+            scores[c - tile + 2] = s2;
+            scores[c - tile + 3] = s3;
+        }
+        for (; c < tileEnd; c++) {
+            scores[c - tile] = MatrixUtils.dotProduct(block, uOff, panel, c * numFactors, numFactors);
+        }
     }
 
     public int getNumFactors() {
@@ -82,6 +420,25 @@ public abstract class MFRecommender extends AbstractPointwiseRecommender {
         this.lambda = lambda;
     }
 
+    /**
+     * Adds a listener to be notified after each training iteration.
+     *
+     * @param listener Listener of the iterations.
+     */
+    public void addIterationListener(IIterationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Adds a policy to stop training before the maximum number of
+     * iterations. Training stops as soon as any of the policies decides so.
+     *
+     * @param policy Stopping policy.
+     */
+    public void addStoppingPolicy(IStoppingPolicy policy) {
+        stoppingPolicies.add(policy);
+    }
+
     public boolean isDebug() {
         return debug;
     }
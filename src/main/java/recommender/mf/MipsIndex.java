@@ -0,0 +1,281 @@
+package recommender.mf;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import util.DenseMatrix;
+import util.MatrixUtils;
+import util.TopKHeaps;
+
+/**
+ * Approximate maximum inner-product search index over item factors, to find
+ * the items with the highest predicted score for a user without scoring all
+ * of them.
+ * <p>
+ * The search is reduced to a nearest neighbor search in the Euclidean space:
+ * each item vector x is extended with the component
+ * <code>sqrt(M^2 - |x|^2)</code>, where M is the largest norm, and each query
+ * with a 0, so that the items closest to a query are those with the largest
+ * inner product. The extended vectors are clustered with k-means into
+ * inverted lists (IVF), and a query only scans the lists of the
+ * {@link #setNumProbes(int) numProbes} closest centroids, where items are
+ * scored with their exact inner product. More probes increase recall at the
+ * cost of scanning more items.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class MipsIndex {
+
+    // Iterations of k-means
+    private static final int KMEANS_ITERATIONS = 10;
+    // Number of items per list used to train k-means
+    private static final int SAMPLE_PER_LIST = 256;
+
+    private final int numFactors;
+    private final int numLists;
+    // Centroids of the extended vectors, and their squared norms
+    private final float[] centroids;
+    private final float[] centroidNorms;
+    // Items of each list, sorted by id, and their factors in the same order
+    private final int[] listOffsets;
+    private final int[] listItems;
+    private final DenseMatrix listFactors;
+    private int numProbes;
+
+    /**
+     * Builds the index of the given items. The number of lists is capped by
+     * the number of items, and an index of no items has no lists, so that
+     * queries return nothing.
+     *
+     * @param itemFactors Latent factors of the items, row-wise.
+     * @param items Internal ids of the items to index.
+     * @param numLists Number of inverted lists.
+     * @param seed Seed of the k-means initialization.
+     */
+    public MipsIndex(DenseMatrix itemFactors, int[] items, int numLists, long seed) {
+        this.numFactors = itemFactors.cols();
+        // No lists, and thus no k-means, without items
+        this.numLists = items.length == 0 ? 0 : Math.max(1, Math.min(numLists, items.length));
+        this.numProbes = 1;
+        int dim = numFactors + 1;
+        int n = items.length;
+
+        // Extended vectors
+        float maxNorm2 = 0;
+        for (int item : items) {
+            maxNorm2 = Math.max(maxNorm2, norm2(itemFactors, item));
+        }
+        float[] vectors = new float[n * dim];
+        for (int p = 0; p < n; p++) {
+            System.arraycopy(itemFactors.data(items[p]), itemFactors.offset(items[p]), vectors, p * dim, numFactors);
+            vectors[p * dim + numFactors] = (float) Math.sqrt(Math.max(0, maxNorm2 - norm2(itemFactors, items[p])));
+        }
+
+        // Train k-means on a sample, starting from random items
+        Random random = new Random(seed);
+        int[] order = IntStream.range(0, n).toArray();
+        int sampleSize = (int) Math.min(n, (long) SAMPLE_PER_LIST * this.numLists);
+        for (int p = 0; p < sampleSize; p++) {
+            int q = p + random.nextInt(n - p);
+            int tmp = order[p];
+            order[p] = order[q];
+            order[q] = tmp;
+        }
+        int[] sample = Arrays.copyOf(order, sampleSize);
+        centroids = new float[this.numLists * dim];
+        centroidNorms = new float[this.numLists];
+        for (int c = 0; c < this.numLists; c++) {
+            System.arraycopy(vectors, sample[c] * dim, centroids, c * dim, dim);
+        }
+        for (int it = 0; it < KMEANS_ITERATIONS; it++) {
+            updateCentroidNorms(dim);
+            int[] assignment = assign(vectors, sample, dim);
+            double[] sums = new double[this.numLists * dim];
+            int[] counts = new int[this.numLists];
+            for (int p = 0; p < sampleSize; p++) {
+                int c = assignment[p];
+                counts[c]++;
+                for (int k = 0; k < dim; k++) {
+                    sums[c * dim + k] += vectors[sample[p] * dim + k];
+                }
+            }
+            // Empty clusters keep their previous centroid
+            for (int c = 0; c < this.numLists; c++) {
+                if (counts[c] > 0) {
+                    for (int k = 0; k < dim; k++) {
+                        centroids[c * dim + k] = (float) (sums[c * dim + k] / counts[c]);
+                    }
+                }
+            }
+        }
+        updateCentroidNorms(dim);
+
+        // Inverted lists of all the items, with their factors packed by list
+        int[] assignment = assign(vectors, order, dim);
+        long[] packed = new long[n];
+        for (int p = 0; p < n; p++) {
+            packed[p] = ((long) assignment[p] << 32) | items[order[p]];
+        }
+        Arrays.sort(packed);
+        listOffsets = new int[this.numLists + 1];
+        listItems = new int[n];
+        listFactors = new DenseMatrix(n, numFactors);
+        for (int p = 0; p < n; p++) {
+            listOffsets[(int) (packed[p] >>> 32) + 1]++;
+            listItems[p] = (int) packed[p];
+            System.arraycopy(itemFactors.data(listItems[p]), itemFactors.offset(listItems[p]),
+                    listFactors.data(p), listFactors.offset(p), numFactors);
+        }
+        for (int c = 0; c < this.numLists; c++) {
+            listOffsets[c + 1] += listOffsets[c];
+        }
+    }
+
+    private static float norm2(DenseMatrix m, int row) {
+        return MatrixUtils.dotProduct(m.data(row), m.offset(row), m.data(row), m.offset(row), m.cols());
+    }
+
+    private void updateCentroidNorms(int dim) {
+        for (int c = 0; c < numLists; c++) {
+            centroidNorms[c] = MatrixUtils.dotProduct(centroids, c * dim, centroids, c * dim, dim);
+        }
+    }
+
+    // Closest centroid of each of the given vectors, in parallel
+    private int[] assign(float[] vectors, int[] rows, int dim) {
+        int[] assignment = new int[rows.length];
+        IntStream.range(0, rows.length)
+                .parallel()
+                .forEach(p -> {
+                    // |x - c|^2 = |x|^2 - 2 x.c + |c|^2, where |x|^2 is constant
+                    int best = 0;
+                    float bestDist = Float.POSITIVE_INFINITY;
+                    for (int c = 0; c < numLists; c++) {
+                        float dist = centroidNorms[c] - 2 * MatrixUtils.dotProduct(vectors, rows[p] * dim, centroids, c * dim, dim);
+                        if (dist < bestDist) {
+                            best = c;
+                            bestDist = dist;
+                        }
+                    }
+                    assignment[p] = best;
+                });
+        return assignment;
+    }
+
+    /**
+     * Searches the items with the largest inner product with a query vector
+     * among those in the probed lists.
+     *
+     * @param query Array with the query vector.
+     * @param offset Position of the query vector within its array.
+     * @param heaps Heaps that keep the top (item, inner product) pairs.
+     * @param heap Index of the heap for this query.
+     * @param accept Filter of the items that can be returned.
+     * @return The number of items scanned.
+     */
+    public int search(float[] query, int offset, TopKHeaps heaps, int heap, IntPredicate accept) {
+        int dim = numFactors + 1;
+
+        // Closest centroids to the extended query, whose last component is 0
+        TopKHeaps probes = new TopKHeaps(Math.min(numProbes, numLists), 1);
+        for (int c = 0; c < numLists; c++) {
+            float dist = centroidNorms[c] - 2 * MatrixUtils.dotProduct(query, offset, centroids, c * dim, numFactors);
+            probes.offer(0, c, -dist);
+        }
+
+        // Scan their lists
+        int scanned = 0;
+        for (int p = 0; p < probes.size(0); p++) {
+            int c = probes.id(0, p);
+            scanned += listOffsets[c + 1] - listOffsets[c];
+            for (int q = listOffsets[c]; q < listOffsets[c + 1]; q++) {
+                int item = listItems[q];
+                if (accept.test(item)) {
+                    float score = MatrixUtils.dotProduct(query, offset, listFactors.data(q), listFactors.offset(q), numFactors);
+                    heaps.offer(heap, item, score);
+                }
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * @return The number of items in this index.
+     */
+    public int numItems() {
+        return listItems.length;
+    }
+
+    /**
+     * @return The number of inverted lists.
+     */
+    public int getNumLists() {
+        return numLists;
+    }
+
+    /**
+     * @return The number of lists scanned by each query.
+     */
+    public int getNumProbes() {
+        return numProbes;
+    }
+
+    /**
+     * Sets the number of lists scanned by each query, which trades speed for
+     * recall. Scanning all the lists is equivalent to an exhaustive search.
+     *
+     * @param numProbes Number of lists scanned by each query.
+     */
+    public void setNumProbes(int numProbes) {
+        this.numProbes = Math.max(1, numProbes);
+    }
+
+    /**
+     * Recall and cost of the recommendations obtained from the index.
+     */
+    public static class Recall {
+
+        private final float recall;
+        private final float scannedFraction;
+        private final float speedup;
+
+        Recall(float recall, float scannedFraction, float speedup) {
+            this.recall = recall;
+            this.scannedFraction = scannedFraction;
+            this.speedup = speedup;
+        }
+
+        /**
+         * @return The fraction of the exact recommendations that are also
+         * obtained from the index.
+         */
+        public float getRecall() {
+            return recall;
+        }
+
+        /**
+         * @return The average number of items scanned per query, as a
+         * fraction of the items in the index.
+         */
+        public float getScannedFraction() {
+            return scannedFraction;
+        }
+
+        /**
+         * @return The time of the exact recommendations divided by the time
+         * of the recommendations obtained from the index.
+         */
+        public float getSpeedup() {
+            return speedup;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "recall=%.4f scanned=%.4f speedup=%.2f",
+                    recall, scannedFraction, speedup);
+        }
+    }
+}
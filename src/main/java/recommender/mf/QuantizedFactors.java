@@ -0,0 +1,108 @@
+package recommender.mf;
+
+import util.DenseMatrix;
+
+/**
+ * Latent factors quantized to 8-bit integers with a scale per row, which take
+ * a quarter of the memory of the original factors.
+ * <p>
+ * Each row x is stored as <code>q = round(x / s)</code>, with
+ * <code>s = max |x_k| / 127</code>, so that the error of each element is at
+ * most s / 2. Inner products with full precision vectors are computed as
+ * <code>s * (q . y)</code>, and are meant to select a shortlist of items to
+ * be re-ranked with the original factors.
+ * <p>
+ * As in {@link DenseMatrix}, rows are split into chunks that hold a power of
+ * two number of rows, to avoid the 2^31 elements limit of Java arrays.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class QuantizedFactors {
+
+    // Maximum number of elements in each chunk
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private final int rows;
+    private final int cols;
+    // Rows per chunk are 2^shift
+    private final int shift;
+    private final int mask;
+    private final byte[][] chunks;
+    private final float[] scales;
+
+    /**
+     * Quantizes the rows of the given matrix.
+     *
+     * @param factors Matrix of latent factors.
+     */
+    public QuantizedFactors(DenseMatrix factors) {
+        this.rows = factors.rows();
+        this.cols = factors.cols();
+        this.shift = 31 - Integer.numberOfLeadingZeros(Math.max(1, MAX_CHUNK_SIZE / Math.max(1, cols)));
+        this.mask = (1 << shift) - 1;
+
+        int rowsPerChunk = 1 << shift;
+        int numChunks = (int) (((long) rows + rowsPerChunk - 1) / rowsPerChunk);
+        this.chunks = new byte[numChunks][];
+        for (int c = 0; c < numChunks; c++) {
+            int chunkRows = Math.min(rowsPerChunk, rows - c * rowsPerChunk);
+            chunks[c] = new byte[chunkRows * cols];
+        }
+        this.scales = new float[rows];
+
+        for (int row = 0; row < rows; row++) {
+            float[] data = factors.data(row);
+            int off = factors.offset(row);
+            float max = 0;
+            for (int k = 0; k < cols; k++) {
+                max = Math.max(max, Math.abs(data[off + k]));
+            }
+            // Rows of zeros keep a scale of 0
+            if (max == 0) {
+                continue;
+            }
+
+            float scale = max / 127;
+            byte[] q = chunks[row >>> shift];
+            int qOff = (row & mask) * cols;
+            for (int k = 0; k < cols; k++) {
+                q[qOff + k] = (byte) Math.round(data[off + k] / scale);
+            }
+            scales[row] = scale;
+        }
+    }
+
+    /**
+     * @return The number of rows.
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of columns.
+     */
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * Computes the approximate inner product between a row and a full
+     * precision vector.
+     *
+     * @param row Target row.
+     * @param y Array with the vector.
+     * @param yOffset Position of the vector within its array.
+     * @return The approximate inner product.
+     */
+    public float dot(int row, float[] y, int yOffset) {
+        byte[] q = chunks[row >>> shift];
+        int qOff = (row & mask) * cols;
+        float prod = 0;
+        for (int k = 0; k < cols; k++) {
+            prod += q[qOff + k] * y[yOffset + k];
+        }
+        return scales[row] * prod;
+    }
+}
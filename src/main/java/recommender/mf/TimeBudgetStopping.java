@@ -0,0 +1,43 @@
+package recommender.mf;
+
+/**
+ * Stops training when the next iteration is expected to exceed a wall-clock
+ * budget, assuming that it takes as long as the last one.
+ * <p>
+ * Time is measured by this policy between consecutive calls, so that an
+ * iteration includes not only the updates of the factors but also the
+ * computation of the loss, the listeners and the other stopping policies.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class TimeBudgetStopping implements IStoppingPolicy {
+
+    private final float budget;
+    // Start of the training and end of the last iteration, in milliseconds
+    private long start;
+    private long last;
+
+    /**
+     * Creates a new policy with the given budget.
+     *
+     * @param budget Maximum training time, in seconds.
+     */
+    public TimeBudgetStopping(float budget) {
+        this.budget = budget;
+    }
+
+    @Override
+    public void start() {
+        start = System.currentTimeMillis();
+        last = start;
+    }
+
+    @Override
+    public boolean shouldStop(MFRecommender model, IterationStats stats) {
+        long now = System.currentTimeMillis();
+        float iterationTime = (now - last) / 1000f;
+        last = now;
+        return (now - start) / 1000f + iterationTime > budget;
+    }
+}
@@ -0,0 +1,112 @@
+package recommender.mf;
+
+import data.PreferenceData;
+import data.RankedItems;
+
+/**
+ * Stops training when the recall of the recommendations for a held-out
+ * validation set has not improved for a number of iterations.
+ * <p>
+ * The recall of a validation user is the fraction of their validation items
+ * recommended in the top-N, and it is averaged over the validation users with
+ * training data. The factors are not rolled back to the best iteration.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class ValidationPlateauStopping implements IStoppingPolicy {
+
+    private final PreferenceData train;
+    private final PreferenceData validation;
+    private final int[] users;
+    private final int[] candidates;
+    private final int cutoff;
+    private final int patience;
+    private final float minDelta;
+    private float bestRecall;
+    private int bestIteration;
+
+    /**
+     * Creates a new policy.
+     *
+     * @param train Training data of the model.
+     * @param validation Held-out validation data.
+     * @param candidates Internal ids in the training data of the candidate
+     * items.
+     * @param cutoff Size N of the recommendation lists.
+     * @param patience Number of iterations without improvement before
+     * stopping.
+     * @param minDelta Minimum increase of the recall to count as an
+     * improvement.
+     */
+    public ValidationPlateauStopping(PreferenceData train, PreferenceData validation, int[] candidates,
+            int cutoff, int patience, float minDelta) {
+        this.train = train;
+        this.validation = validation;
+        this.users = validation.users().stream()
+                .mapToInt(train::userId)
+                .filter(u -> u >= 0)
+                .toArray();
+        this.candidates = candidates;
+        this.cutoff = cutoff;
+        this.patience = patience;
+        this.minDelta = minDelta;
+    }
+
+    @Override
+    public void start() {
+        bestRecall = Float.NEGATIVE_INFINITY;
+        bestIteration = 0;
+    }
+
+    @Override
+    public boolean shouldStop(MFRecommender model, IterationStats stats) {
+        float recall = computeRecall(model);
+        if (recall > bestRecall + minDelta) {
+            bestRecall = recall;
+            bestIteration = stats.getIteration();
+        }
+        return stats.getIteration() - bestIteration >= patience;
+    }
+
+    /**
+     * Computes the average recall of the current model over the validation
+     * users.
+     *
+     * @param model Model to evaluate.
+     * @return The average recall at the cutoff.
+     */
+    public float computeRecall(MFRecommender model) {
+        if (users.length == 0) {
+            return 0;
+        }
+
+        RankedItems[] lists = model.rankBatch(users, cutoff, candidates);
+        double sum = 0;
+        for (int n = 0; n < users.length; n++) {
+            String user = train.user(users[n]);
+            int hits = 0;
+            for (int p = 0; p < lists[n].size(); p++) {
+                if (validation.existsPreference(user, train.item(lists[n].item(p)))) {
+                    hits++;
+                }
+            }
+            sum += (double) hits / validation.userItems(user).size();
+        }
+        return (float) (sum / users.length);
+    }
+
+    /**
+     * @return The best recall so far.
+     */
+    public float getBestRecall() {
+        return bestRecall;
+    }
+
+    /**
+     * @return The iteration with the best recall so far.
+     */
+    public int getBestIteration() {
+        return bestIteration;
+    }
+}
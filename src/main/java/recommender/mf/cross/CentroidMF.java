@@ -1,12 +1,13 @@
 package recommender.mf.cross;
 
 import recommender.mf.*;
+import data.CsrMatrix;
 import data.PreferenceData;
-import data.ScoredItem;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Locale;
-import java.util.Queue;
 import java.util.Set;
+import java.util.stream.IntStream;
 import similarity.ItemNeighborhoods;
 import util.MatrixUtils;
 
@@ -24,6 +25,9 @@ public class CentroidMF extends FastMF {
     // Sets of source and target domain items
     private final Set<String> sourceItems;
     private final Set<String> targetItems;
+    // Internal ids of source and target domain items
+    private final int[] sourceIds;
+    private final int[] targetIds;
     // Regularization for cross-domain item factors
     private float lambdaCross;
 
@@ -42,6 +46,8 @@ public class CentroidMF extends FastMF {
         this.sourceItems = new HashSet<>(train.items());
         this.sourceItems.removeAll(targetItems);
         this.targetItems = targetItems;
+        this.sourceIds = sourceItems.stream().mapToInt(train::itemId).sorted().toArray();
+        this.targetIds = targetItems.stream().mapToInt(train::itemId).sorted().toArray();
         this.lambdaCross = 0.015f;
     }
 
@@ -50,22 +56,22 @@ public class CentroidMF extends FastMF {
         double loss = super.computeLoss();
 
         if (lambdaCross > 0) {
-            double simReg = targetItems.stream()
+            int[] neighIds = neighborhoods.neighborIds();
+            float[] neighScores = neighborhoods.neighborScores();
+            double simReg = IntStream.of(targetIds)
                     .parallel()
-                    .mapToDouble(tgtItem -> {
+                    .mapToDouble(i -> {
                         float itemReg = 0;
-                        int i = train.itemId(tgtItem);
-
-                        Queue<ScoredItem> neighs = neighborhoods.neighbors(tgtItem);
-                        if (neighs != null) {
-                            float[] aux = new float[numFactors];
-                            for (ScoredItem ni : neighs) {
-                                String neigh = ni.getItem();
-                                int j = train.itemId(neigh);
-                                float s = ni.getScore();
-                                MatrixUtils.add(aux, itemFactors[j], s);
+
+                        if (neighborhoods.neighborsStart(i) < neighborhoods.neighborsEnd(i)) {
+                            float[] aux = workspace.get().ensureCapacity(numFactors).cross;
+                            Arrays.fill(aux, 0);
+                            for (int p = neighborhoods.neighborsStart(i); p < neighborhoods.neighborsEnd(i); p++) {
+                                int j = neighIds[p];
+                                float s = neighScores[p];
+                                MatrixUtils.add(aux, itemFactors.data(j), itemFactors.offset(j), s);
                             }
-                            itemReg = MatrixUtils.distance2(itemFactors[i], aux);
+                            itemReg = MatrixUtils.distance2(aux, 0, itemFactors.data(i), itemFactors.offset(i), numFactors);
                         }
 
                         return itemReg;
@@ -83,150 +89,73 @@ public class CentroidMF extends FastMF {
         float[][] G = computeG(userFactors, lambda);
 
         // Update first source item factors, cannot be done in parallel
-        sourceItems.stream()
+        IntStream.of(sourceIds)
                 //.parallel()
-                .forEach(i -> updateSourceItem(i, train.itemUsers(i), G));
+                .forEach(j -> updateSourceItem(j, G));
 
         // Then update target item factors
-        targetItems.stream()
+        IntStream.of(targetIds)
                 .parallel()
-                .forEach(j -> updateTargetItem(j, train.itemUsers(j), G));
+                .forEach(i -> updateTargetItem(i, G));
     }
 
-    protected void updateTargetItem(String item, Set<String> itemUsers, float[][] G) {
-        int K = numFactors;
-        int N = itemUsers.size();
-
-        float[][] x = new float[K + N][K];
-        float[] y = new float[K + N];
-        float[] c = new float[K + N];
-
-        // First K synthetic negative implicit feedback examples
-        for (int k = 0; k < K; k++) {
-            x[k] = G[k];
-            y[k] = 0;
-            c[k] = 1;
-        }
-
-        // Merge negative implicit feedback cancelation examples and
-        // aggregation of positive implicit feedbacks
-        int n = K;
-        for (String user : itemUsers) {
-            int u = train.userId(user);
-            x[n] = userFactors[u];
-            // Note that in our implementation we only deal with binary feedback
-            y[n] = (1 + alpha) / alpha;
-            c[n] = alpha;
-            n++;
-        }
+    protected void updateTargetItem(int i, float[][] G) {
+        CsrMatrix itemUsers = train.itemUserMatrix();
+        int[] users = itemUsers.indices();
 
         // Compute the source centroid
-        float[] centroid = new float[numFactors];
-        Queue<ScoredItem> neighs = neighborhoods.neighbors(item);
-        if (neighs != null) {
-            // Could be null if e.g. all sims are NaN
-            for (ScoredItem neigh : neighs) {
-                int j = train.itemId(neigh.getItem());
-                float s = neigh.getScore();
-                MatrixUtils.add(centroid, itemFactors[j], s);
-            }
+        float[] centroid = workspace.get().ensureCapacity(numFactors).cross;
+        Arrays.fill(centroid, 0);
+        // Could be empty if e.g. all sims are NaN
+        int[] neighIds = neighborhoods.neighborIds();
+        float[] neighScores = neighborhoods.neighborScores();
+        for (int p = neighborhoods.neighborsStart(i); p < neighborhoods.neighborsEnd(i); p++) {
+            int j = neighIds[p];
+            float s = neighScores[p];
+            MatrixUtils.add(centroid, itemFactors.data(j), itemFactors.offset(j), s);
         }
 
         // Perform a single cycle of RR1
-        int i = train.itemId(item);
-        solveExtendedRR1(1, itemFactors[i], x, y, c, centroid, 1);
-    }
-
-    protected void updateSourceItem(String item, Set<String> itemUsers, float[][] G) {
-        int K = numFactors;
-        int N = itemUsers.size();
-        int j = train.itemId(item);
-
-        float[][] x = new float[K + N][K];
-        float[] y = new float[K + N];
-        float[] c = new float[K + N];
-
-        // First K synthetic negative implicit feedback examples
-        for (int k = 0; k < K; k++) {
-            x[k] = G[k];
-            y[k] = 0;
-            c[k] = 1;
+        for (int k = 0; k < numFactors; k++) {
+            centroid[k] *= lambdaCross;
         }
+        solveRR1(itemFactors.data(i), itemFactors.offset(i), G, userFactors, users, itemUsers.start(i), itemUsers.end(i),
+                centroid, lambdaCross * 1);
+    }
 
-        // Merge negative implicit feedback cancelation examples and
-        // aggregation of positive implicit feedbacks
-        int n = K;
-        for (String user : itemUsers) {
-            int u = train.userId(user);
-            x[n] = userFactors[u];
-            // Note that in our implementation we only deal with binary feedback
-            y[n] = (1 + alpha) / alpha;
-            c[n] = alpha;
-            n++;
-        }
+    protected void updateSourceItem(int j, float[][] G) {
+        CsrMatrix itemUsers = train.itemUserMatrix();
+        int[] users = itemUsers.indices();
 
         // Compute cross terms
         float sq = 0;
-        float[] aux = new float[numFactors];
-        Set<ScoredItem> invNeighs = neighborhoods.invNeighbors(item);
-        if (invNeighs != null) {
-            for (ScoredItem neigh : invNeighs) {
-                int i = train.itemId(neigh.getItem());
-                float s = neigh.getScore();
-                sq += s * s;
-                MatrixUtils.add(aux, itemFactors[i], s);
-
-                for (ScoredItem o : neighborhoods.neighbors(neigh.getItem())) {
-                    int k = train.itemId(o.getItem());
-                    if (k != j) {
-                        float sk = o.getScore();
-                        MatrixUtils.add(aux, itemFactors[k], -s * sk);
-                    }
+        float[] aux = workspace.get().ensureCapacity(numFactors).cross;
+        Arrays.fill(aux, 0);
+        int[] neighIds = neighborhoods.neighborIds();
+        float[] neighScores = neighborhoods.neighborScores();
+        int[] invNeighIds = neighborhoods.invNeighborIds();
+        float[] invNeighScores = neighborhoods.invNeighborScores();
+        for (int p = neighborhoods.invNeighborsStart(j); p < neighborhoods.invNeighborsEnd(j); p++) {
+            int i = invNeighIds[p];
+            float s = invNeighScores[p];
+            sq += s * s;
+            MatrixUtils.add(aux, itemFactors.data(i), itemFactors.offset(i), s);
+
+            for (int q = neighborhoods.neighborsStart(i); q < neighborhoods.neighborsEnd(i); q++) {
+                int k = neighIds[q];
+                if (k != j) {
+                    float sk = neighScores[q];
+                    MatrixUtils.add(aux, itemFactors.data(k), itemFactors.offset(k), -s * sk);
                 }
             }
         }
 
         // Perform a single cycle of RR1
-        solveExtendedRR1(1, itemFactors[j], x, y, c, aux, sq);
-    }
-
-    protected void solveExtendedRR1(int L, float[] w, float[][] x, float[] y, float[] c, float[] num, float den) {
-        int K = x[0].length;
-        int N = x.length;
-
-        // Compute all the errors
-        float[] e = new float[N];
-        for (int i = 0; i < N; i++) {
-            float pred = 0;
-            for (int k = 0; k < K; k++) {
-                pred += w[k] * x[i][k];
-            }
-            e[i] = y[i] - pred;
-        }
-
-        // Cycle RR1
-        for (int l = 0; l < L; l++) {
-            // One cycle
-            for (int k = 0; k < K; k++) {
-                // New temporary error
-                for (int i = 0; i < N; i++) {
-                    e[i] += w[k] * x[i][k];
-                }
-
-                float a = 0;
-                float d = 0;
-                for (int i = 0; i < N; i++) {
-                    a += c[i] * x[i][k] * x[i][k];
-                    d += c[i] * x[i][k] * e[i];
-                }
-                w[k] = (d + lambdaCross * num[k]) / (a + lambda + lambdaCross * den);
-
-                // Update error
-                for (int i = 0; i < N; i++) {
-                    e[i] -= w[k] * x[i][k];
-                }
-            }
+        for (int k = 0; k < numFactors; k++) {
+            aux[k] *= lambdaCross;
         }
+        solveRR1(itemFactors.data(j), itemFactors.offset(j), G, userFactors, users, itemUsers.start(j), itemUsers.end(j),
+                aux, lambdaCross * sq);
     }
 
     /**
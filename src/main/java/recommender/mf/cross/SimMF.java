@@ -1,16 +1,28 @@
 package recommender.mf.cross;
 
+import data.CsrMatrix;
 import data.PreferenceData;
+import gnu.trove.list.TFloatList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
+import java.util.stream.IntStream;
 import recommender.mf.FastMF;
-import similarity.ISimilarity;
+import similarity.ISparseSimilarity;
 import util.MatrixUtils;
 
 /**
  * Implementation of the cross-domain item similarity iMF recommender that uses
  * the RR1 variant proposed by Pilászy et al. (RecSys 2010) to speed up ALS.
+ * <p>
+ * The regression of each item factor against the similarities with all the
+ * items of the other domain is solved in closed form with the Gram matrix of
+ * the other domain, so that each update only iterates over the non-zero
+ * similarities of the item.
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
@@ -18,10 +30,19 @@ import util.MatrixUtils;
 public class SimMF extends FastMF {
 
     // Strategy to compute cross-domain item similarities
-    private final ISimilarity sim;
+    private final ISparseSimilarity sim;
     // Sets of source and target domain items
     private final Set<String> sourceItems;
     private final Set<String> targetItems;
+    // Internal ids of source and target domain items
+    private final int[] sourceIds;
+    private final int[] targetIds;
+    private final boolean[] isSource;
+    private final boolean[] isTarget;
+    // Non-zero cross-domain similarities, row-wise by item id
+    private int[] crossOffsets;
+    private int[] crossIds;
+    private float[] crossScores;
     // Regularization for cross-domain item factors
     // Note: if set to 0 we recover a bit less efficient iMF
     private float lambdaCross;
@@ -36,13 +57,69 @@ public class SimMF extends FastMF {
      * to be the set of training items that are not target items (set
      * difference).
      */
-    public SimMF(PreferenceData train, ISimilarity sim, Set<String> targetItems) {
+    public SimMF(PreferenceData train, ISparseSimilarity sim, Set<String> targetItems) {
         super(train);
         this.sim = sim;
         this.sourceItems = new HashSet<>(train.items());
         this.sourceItems.removeAll(targetItems);
         this.targetItems = targetItems;
+        this.sourceIds = sourceItems.stream().mapToInt(train::itemId).sorted().toArray();
+        this.targetIds = targetItems.stream().mapToInt(train::itemId).sorted().toArray();
+        this.isSource = new boolean[train.maxItemID() + 1];
+        this.isTarget = new boolean[train.maxItemID() + 1];
+        IntStream.of(sourceIds).forEach(i -> isSource[i] = true);
+        IntStream.of(targetIds).forEach(j -> isTarget[j] = true);
         this.lambdaCross = 0.015f;
+        loadCrossSimilarities();
+    }
+
+    // Stores the non-zero cross-domain similarities in both directions, with
+    // the similar items of each item sorted by id
+    private void loadCrossSimilarities() {
+        int numItems = train.maxItemID() + 1;
+        TIntList firsts = new TIntArrayList();
+        TIntList seconds = new TIntArrayList();
+        TFloatList scores = new TFloatArrayList();
+        sim.forEachPair((first, second, score) -> {
+            int i = train.itemId(first);
+            int j = train.itemId(second);
+            if (i < 0 || j < 0 || score == 0 || isSource[i] == isSource[j]) {
+                return;
+            }
+            firsts.add(i);
+            seconds.add(j);
+            scores.add(score);
+        });
+
+        // Count the similar items of each item
+        crossOffsets = new int[numItems + 1];
+        for (int p = 0; p < firsts.size(); p++) {
+            crossOffsets[firsts.get(p) + 1]++;
+            crossOffsets[seconds.get(p) + 1]++;
+        }
+        for (int i = 0; i < numItems; i++) {
+            crossOffsets[i + 1] += crossOffsets[i];
+        }
+
+        // Place each pair in both rows, packing the id and the score bits so
+        // that each row can be sorted by id
+        long[] packed = new long[crossOffsets[numItems]];
+        int[] next = Arrays.copyOf(crossOffsets, numItems);
+        for (int p = 0; p < firsts.size(); p++) {
+            long bits = Float.floatToRawIntBits(scores.get(p)) & 0xFFFFFFFFL;
+            packed[next[firsts.get(p)]++] = ((long) seconds.get(p) << 32) | bits;
+            packed[next[seconds.get(p)]++] = ((long) firsts.get(p) << 32) | bits;
+        }
+
+        crossIds = new int[packed.length];
+        crossScores = new float[packed.length];
+        for (int i = 0; i < numItems; i++) {
+            Arrays.sort(packed, crossOffsets[i], crossOffsets[i + 1]);
+        }
+        for (int p = 0; p < packed.length; p++) {
+            crossIds[p] = (int) (packed[p] >>> 32);
+            crossScores[p] = Float.intBitsToFloat((int) packed[p]);
+        }
     }
 
     @Override
@@ -50,21 +127,25 @@ public class SimMF extends FastMF {
         // Loss is the same as in normal iMF + additional regularization
         double loss = super.computeLoss();
 
-        // Similarity regularization
+        // Similarity regularization over all (source, target) pairs. With all
+        // similarities 0, it is trace(X_s'X_s X_t'X_t), and then the pairs
+        // with a similarity are corrected
         if (lambdaCross > 0) {
-            double simReg = sourceItems.stream()
+            double[][] sourceGram = new double[numFactors][numFactors];
+            double[][] targetGram = new double[numFactors][numFactors];
+            MatrixUtils.transposeTimes(itemFactors, i -> isSource[i], sourceGram);
+            MatrixUtils.transposeTimes(itemFactors, j -> isTarget[j], targetGram);
+            double simReg = MatrixUtils.traceProduct(sourceGram, targetGram);
+
+            simReg += IntStream.of(sourceIds)
                     .parallel()
-                    .mapToDouble(srcItem -> {
-                        float itemReg = 0;
-                        int i = train.itemId(srcItem);
-
-                        for (String tgtItem : targetItems) {
-                            int j = train.itemId(tgtItem);
-                            float s = sim.compute(srcItem, tgtItem);
-                            float prod = MatrixUtils.dotProduct(itemFactors[i], itemFactors[j]);
-                            itemReg += (s - prod) * (s - prod);
+                    .mapToDouble(i -> {
+                        double itemReg = 0;
+                        for (int p = crossOffsets[i]; p < crossOffsets[i + 1]; p++) {
+                            float s = crossScores[p];
+                            float prod = itemFactors.dot(i, itemFactors, crossIds[p]);
+                            itemReg += (s - prod) * (s - prod) - prod * prod;
                         }
-
                         return itemReg;
                     })
                     .sum();
@@ -79,58 +160,39 @@ public class SimMF extends FastMF {
         // Compute G as in FastALS
         float[][] G = computeG(userFactors, lambda);
 
-        // Update first source item factors
-        train.items().stream()
-                .filter(sourceItems::contains)
+        // Update first source item factors, with the Gram matrix of the
+        // target item factors
+        float[][] targetGram = MatrixUtils.transposeTimes(itemFactors, j -> isTarget[j]);
+        IntStream.of(sourceIds)
                 .parallel()
-                .forEach(i -> minimizeItem(i, train.itemUsers(i), targetItems, G));
+                .forEach(i -> minimizeItem(i, targetGram, G));
 
-        // Then update target item factors
-        train.items().stream()
-                .filter(targetItems::contains)
+        // Then update target item factors, with the Gram matrix of the
+        // updated source item factors
+        float[][] sourceGram = MatrixUtils.transposeTimes(itemFactors, i -> isSource[i]);
+        IntStream.of(targetIds)
                 .parallel()
-                .forEach(j -> minimizeItem(j, train.itemUsers(j), sourceItems, G));
+                .forEach(j -> minimizeItem(j, sourceGram, G));
     }
 
-    protected void minimizeItem(String item, Set<String> itemUsers, Set<String> otherItems, float[][] G) {
-        int K = numFactors;
-        int N = itemUsers.size() + otherItems.size();
-
-        float[][] x = new float[K + N][K];
-        float[] y = new float[K + N];
-        float[] c = new float[K + N];
-
-        // First K synthetic negative implicit feedback examples
-        for (int k = 0; k < K; k++) {
-            x[k] = G[k];
-            y[k] = 0;
-            c[k] = 1;
-        }
-
-        // Merge negative implicit feedback cancelation examples and
-        // aggregation of positive implicit feedbacks
-        int n = K;
-        for (String user : itemUsers) {
-            int u = train.userId(user);
-            x[n] = userFactors[u];
-            // Note that in our implementation we only deal with binary feedback
-            y[n] = (1 + alpha) / alpha;
-            c[n] = alpha;
-            n++;
-        }
-
-        // Cross-domain regularization examples
-        for (String otherItem : otherItems) {
-            int j = train.itemId(otherItem);
-            x[n] = itemFactors[j];
-            y[n] = sim.compute(item, otherItem);
-            c[n] = lambdaCross;
-            n++;
+    // The similarity regression of item i against all the items j of the other
+    // domain is sum((s(i, j) - w'x_j)^2) = sum(s(i, j)^2) - 2w'b + w'Mw, with
+    // M the Gram matrix of the other domain and b = sum(s(i, j) x_j). Only the
+    // non-zero similarities are needed to compute b
+    protected void minimizeItem(int i, float[][] M, float[][] G) {
+        CsrMatrix itemUsers = train.itemUserMatrix();
+        int[] users = itemUsers.indices();
+
+        float[] b = workspace.get().ensureCapacity(numFactors).cross;
+        Arrays.fill(b, 0);
+        for (int p = crossOffsets[i]; p < crossOffsets[i + 1]; p++) {
+            int j = crossIds[p];
+            MatrixUtils.add(b, itemFactors.data(j), itemFactors.offset(j), lambdaCross * crossScores[p]);
         }
 
         // Perform a single cycle of RR1
-        int i = train.itemId(item);
-        solveRR1(1, itemFactors[i], x, y, c);
+        solveRR1(itemFactors.data(i), itemFactors.offset(i), G, userFactors, users, itemUsers.start(i), itemUsers.end(i),
+                b, 0, M, lambdaCross);
     }
 
     /**
@@ -0,0 +1,333 @@
+package similarity;
+
+import data.CsrMatrix;
+import data.PreferenceData;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import util.TopKHeaps;
+
+/**
+ * Item-item similarities computed in-process for all pairs of items with at
+ * least one user in common, from their co-occurrence counts.
+ * <p>
+ * Co-occurrences are accumulated with the inverted index of the training
+ * data: for each item i, the items of each of its users are counted into a
+ * dense per-thread accumulator, so that only co-occurring pairs are visited.
+ * Items are processed in parallel blocks. Optionally, only the top-K most
+ * similar items of each item are kept.
+ * <p>
+ * The similar items of each item are stored as sparse rows sorted by internal
+ * id, which can be read directly by {@link ItemNeighborhoods}, and queried by
+ * item id or identifier. Pairs that are not stored have a similarity of 0.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class CooccurrenceSimilarity implements ISparseSimilarity, IIndexedSimilarity {
+
+    /**
+     * Similarity measures that can be computed from co-occurrence counts.
+     */
+    public enum Measure {
+        /**
+         * <code>|U(i) &cap; U(j)| / |U(i) &cup; U(j)|</code>
+         */
+        JACCARD,
+        /**
+         * <code>|U(i) &cap; U(j)| / sqrt(|U(i)| |U(j)|)</code>
+         */
+        COSINE,
+        /**
+         * <code>P(j | i) = |U(i) &cap; U(j)| / |U(i)|</code>, which is not
+         * symmetric.
+         */
+        CONDITIONAL_PROBABILITY
+    }
+
+    /**
+     * Filter of the pairs of items for which similarities are computed.
+     */
+    @FunctionalInterface
+    public interface PairFilter {
+
+        /**
+         * Tests whether the similarity of a pair of items is required.
+         *
+         * @param first Internal id of the first item.
+         * @param second Internal id of the second item.
+         * @return True iff the similarity should be computed and stored.
+         */
+        boolean accept(int first, int second);
+    }
+
+    // Number of items processed by each parallel task
+    private static final int BLOCK_SIZE = 256;
+
+    private final PreferenceData train;
+    private final Measure measure;
+    private final int numNeighbors;
+    private final PairFilter filter;
+    // Similar items of each item
+    private final int[] offsets;
+    private final int[] ids;
+    private final float[] scores;
+
+    /**
+     * Computes the similarities between all the items of the training data.
+     *
+     * @param train Training preference data.
+     * @param measure Similarity measure.
+     * @param numNeighbors Number of most similar items kept for each item, or
+     * 0 to keep all of them.
+     */
+    public CooccurrenceSimilarity(PreferenceData train, Measure measure, int numNeighbors) {
+        this(train, measure, numNeighbors, null);
+    }
+
+    /**
+     * Computes the similarities between the pairs of items of the training
+     * data accepted by a filter, e.g. items of different domains.
+     *
+     * @param train Training preference data.
+     * @param measure Similarity measure.
+     * @param numNeighbors Number of most similar items kept for each item, or
+     * 0 to keep all of them.
+     * @param filter Filter of the pairs of items, or <tt>null</tt> to compute
+     * all pairs.
+     */
+    public CooccurrenceSimilarity(PreferenceData train, Measure measure, int numNeighbors, PairFilter filter) {
+        this.train = train;
+        this.measure = measure;
+        this.numNeighbors = numNeighbors;
+        this.filter = filter;
+
+        // Compute the rows of each block in parallel
+        int numItems = train.maxItemID() + 1;
+        int numBlocks = (numItems + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[][][] blockIds = new int[numBlocks][][];
+        float[][][] blockScores = new float[numBlocks][][];
+        ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(() -> new Accumulator(numItems));
+        IntStream.range(0, numBlocks)
+                .parallel()
+                .forEach(b -> {
+                    Accumulator acc = accumulators.get();
+                    int from = b * BLOCK_SIZE;
+                    int to = Math.min(numItems, from + BLOCK_SIZE);
+                    blockIds[b] = new int[to - from][];
+                    blockScores[b] = new float[to - from][];
+                    for (int i = from; i < to; i++) {
+                        acc.computeRow(i);
+                        blockIds[b][i - from] = acc.rowIds;
+                        blockScores[b][i - from] = acc.rowScores;
+                    }
+                });
+
+        // Concatenate the rows
+        offsets = new int[numItems + 1];
+        for (int i = 0; i < numItems; i++) {
+            long end = (long) offsets[i] + blockIds[i / BLOCK_SIZE][i % BLOCK_SIZE].length;
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Too many similarities, keep less neighbors per item");
+            }
+            offsets[i + 1] = (int) end;
+        }
+        ids = new int[offsets[numItems]];
+        scores = new float[offsets[numItems]];
+        IntStream.range(0, numItems)
+                .parallel()
+                .forEach(i -> {
+                    int[] rowIds = blockIds[i / BLOCK_SIZE][i % BLOCK_SIZE];
+                    float[] rowScores = blockScores[i / BLOCK_SIZE][i % BLOCK_SIZE];
+                    System.arraycopy(rowIds, 0, ids, offsets[i], rowIds.length);
+                    System.arraycopy(rowScores, 0, scores, offsets[i], rowScores.length);
+                });
+    }
+
+    // Co-occurrence counts of an item with the rest of items
+    private class Accumulator {
+
+        private final int[] counts;
+        // Items with non-zero counts, in order of discovery
+        private final int[] touched;
+        private int numTouched;
+        private final TopKHeaps heap;
+        // Output row
+        private int[] rowIds;
+        private float[] rowScores;
+
+        private Accumulator(int numItems) {
+            this.counts = new int[numItems];
+            this.touched = new int[numItems];
+            this.heap = numNeighbors > 0 ? new TopKHeaps(numNeighbors, 1) : null;
+        }
+
+        private void computeRow(int i) {
+            CsrMatrix itemUsers = train.itemUserMatrix();
+            CsrMatrix userItems = train.userItemMatrix();
+            int[] users = itemUsers.indices();
+            int[] items = userItems.indices();
+
+            // Count co-occurrences through the users of i
+            numTouched = 0;
+            for (int p = itemUsers.start(i); p < itemUsers.end(i); p++) {
+                int u = users[p];
+                for (int q = userItems.start(u); q < userItems.end(u); q++) {
+                    int j = items[q];
+                    if (counts[j]++ == 0) {
+                        touched[numTouched++] = j;
+                    }
+                }
+            }
+
+            // Drop i itself and the pairs not accepted by the filter
+            int n = 0;
+            for (int p = 0; p < numTouched; p++) {
+                int j = touched[p];
+                if (j != i && (filter == null || filter.accept(i, j))) {
+                    touched[n++] = j;
+                } else {
+                    counts[j] = 0;
+                }
+            }
+            numTouched = n;
+
+            // Score, and keep the top-K if required
+            int sizeI = itemUsers.degree(i);
+            if (heap == null) {
+                Arrays.sort(touched, 0, numTouched);
+                rowIds = Arrays.copyOf(touched, numTouched);
+                rowScores = new float[numTouched];
+                for (int p = 0; p < numTouched; p++) {
+                    int j = touched[p];
+                    rowScores[p] = score(counts[j], sizeI, itemUsers.degree(j));
+                    counts[j] = 0;
+                }
+            } else {
+                heap.clear(0);
+                for (int p = 0; p < numTouched; p++) {
+                    int j = touched[p];
+                    heap.offer(0, j, score(counts[j], sizeI, itemUsers.degree(j)));
+                    counts[j] = 0;
+                }
+
+                long[] packed = new long[heap.size(0)];
+                for (int p = 0; p < packed.length; p++) {
+                    long bits = Float.floatToRawIntBits(heap.score(0, p)) & 0xFFFFFFFFL;
+                    packed[p] = ((long) heap.id(0, p) << 32) | bits;
+                }
+                Arrays.sort(packed);
+                rowIds = new int[packed.length];
+                rowScores = new float[packed.length];
+                for (int p = 0; p < packed.length; p++) {
+                    rowIds[p] = (int) (packed[p] >>> 32);
+                    rowScores[p] = Float.intBitsToFloat((int) packed[p]);
+                }
+            }
+        }
+    }
+
+    private float score(int count, int sizeI, int sizeJ) {
+        switch (measure) {
+            case JACCARD:
+                return (float) count / (sizeI + sizeJ - count);
+            case COSINE:
+                return (float) (count / Math.sqrt((double) sizeI * sizeJ));
+            case CONDITIONAL_PROBABILITY:
+                return (float) count / sizeI;
+            default:
+                throw new IllegalStateException("Unknown measure " + measure);
+        }
+    }
+
+    /**
+     * @return The similarity measure.
+     */
+    public Measure getMeasure() {
+        return measure;
+    }
+
+    /**
+     * @param item Internal id of an item.
+     * @return The position of the first similar item of the item.
+     */
+    public int start(int item) {
+        return offsets[item];
+    }
+
+    /**
+     * @param item Internal id of an item.
+     * @return The position after the last similar item of the item.
+     */
+    public int end(int item) {
+        return offsets[item + 1];
+    }
+
+    /**
+     * @return The internal ids of the similar items of all items, by
+     * position.
+     */
+    public int[] ids() {
+        return ids;
+    }
+
+    /**
+     * @return The similarities with the similar items of all items, by
+     * position.
+     */
+    public float[] scores() {
+        return scores;
+    }
+
+    /**
+     * Computes the similarity between two items. For the conditional
+     * probability, this is the probability of the second item given the
+     * first one.
+     *
+     * @param first Internal id of the first item.
+     * @param second Internal id of the second item.
+     * @return The similarity between both items.
+     */
+    @Override
+    public float compute(int first, int second) {
+        int p = Arrays.binarySearch(ids, offsets[first], offsets[first + 1], second);
+        if (p >= 0) {
+            return scores[p];
+        }
+        // With top-K pruning, a symmetric similarity may be kept in one row only
+        if (measure != Measure.CONDITIONAL_PROBABILITY) {
+            p = Arrays.binarySearch(ids, offsets[second], offsets[second + 1], first);
+            if (p >= 0) {
+                return scores[p];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public float compute(String first, String second) {
+        int i = train.itemId(first);
+        int j = train.itemId(second);
+        return i < 0 || j < 0 ? 0 : compute(i, j);
+    }
+
+    /**
+     * Executes the given procedure for each pair of items with a stored
+     * similarity, once per unordered pair. For the conditional probability,
+     * the score is the one in the row of the item with the smallest id, if
+     * stored.
+     *
+     * @param procedure Procedure to execute.
+     */
+    @Override
+    public void forEachPair(PairProcedure procedure) {
+        for (int i = 0; i < offsets.length - 1; i++) {
+            for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+                int j = ids[p];
+                // Pairs stored in both rows are visited from the smaller id
+                if (i < j || Arrays.binarySearch(ids, offsets[j], offsets[j + 1], i) < 0) {
+                    procedure.execute(train.item(i), train.item(j), scores[p]);
+                }
+            }
+        }
+    }
+}
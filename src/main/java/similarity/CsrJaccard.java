@@ -0,0 +1,159 @@
+package similarity;
+
+import data.CsrMatrix;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Similarity implementation based on Jaccard's coefficient between the rows
+ * of a {@link CsrMatrix CSR matrix}, e.g. the sets of items of users.
+ * <p>
+ * Intersections are computed over the sorted adjacency lists without
+ * allocating any objects: lists of similar sizes are merged linearly, and a
+ * short list is intersected with a much longer one by galloping (exponential)
+ * search. Rows with many elements are also stored as bitsets, so that they
+ * can be intersected by probing the bits of the elements of the other row.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class CsrJaccard implements ISimilarity, IIndexedSimilarity {
+
+    // Size ratio from which galloping is faster than a linear merge
+    private static final int GALLOP_RATIO = 16;
+    // Rows with at least 1 element per this number of columns get a bitset
+    private static final int BITSET_DENSITY = 64;
+
+    private final CsrMatrix matrix;
+    private final ToIntFunction<String> ids;
+    // Bitsets of the dense rows, null for the rest
+    private final long[][] bitsets;
+
+    /**
+     * Creates a new Jaccard similarity between the rows of the given matrix.
+     *
+     * @param matrix Matrix whose rows are the sets of elements for each
+     * user/item.
+     * @param ids Function that retrieves the row of a user/item identifier,
+     * or -1 if there is none.
+     */
+    public CsrJaccard(CsrMatrix matrix, ToIntFunction<String> ids) {
+        this.matrix = matrix;
+        this.ids = ids;
+
+        int numCols = IntStream.of(matrix.indices()).max().orElse(-1) + 1;
+        int minDegree = Math.max(1, numCols / BITSET_DENSITY);
+        int[] indices = matrix.indices();
+        this.bitsets = new long[matrix.numRows()][];
+        IntStream.range(0, matrix.numRows())
+                .parallel()
+                .filter(r -> matrix.degree(r) >= minDegree)
+                .forEach(r -> {
+                    long[] bits = new long[(numCols + 63) >>> 6];
+                    for (int p = matrix.start(r); p < matrix.end(r); p++) {
+                        bits[indices[p] >>> 6] |= 1L << indices[p];
+                    }
+                    bitsets[r] = bits;
+                });
+    }
+
+    @Override
+    public float compute(String first, String second) {
+        int a = ids.applyAsInt(first);
+        int b = ids.applyAsInt(second);
+        if (a < 0 || b < 0) {
+            // Same as an empty set
+            int size = a >= 0 ? matrix.degree(a) : b >= 0 ? matrix.degree(b) : 0;
+            return 0f / size;
+        }
+        return compute(a, b);
+    }
+
+    @Override
+    public float compute(int first, int second) {
+        int sizeA = matrix.degree(first);
+        int sizeB = matrix.degree(second);
+
+        int small = sizeA < sizeB ? first : second;
+        int large = sizeA < sizeB ? second : first;
+
+        long intersection = intersectionSize(small, large);
+        long union = sizeA + sizeB - intersection;
+
+        return (float) intersection / union;
+    }
+
+    /**
+     * Computes the number of common elements of two rows.
+     *
+     * @param small Row with the smallest number of elements.
+     * @param large Row with the largest number of elements.
+     * @return The size of the intersection of both rows.
+     */
+    protected int intersectionSize(int small, int large) {
+        int[] indices = matrix.indices();
+        int from = matrix.start(small);
+        int to = matrix.end(small);
+        int count = 0;
+
+        if (bitsets[large] != null) {
+            // Probe the bits of the dense row
+            long[] bits = bitsets[large];
+            for (int p = from; p < to; p++) {
+                if ((bits[indices[p] >>> 6] & (1L << indices[p])) != 0) {
+                    count++;
+                }
+            }
+        } else if ((long) GALLOP_RATIO * (to - from) < matrix.degree(large)) {
+            // Gallop over the long row, which is never visited backwards
+            int q = matrix.start(large);
+            int end = matrix.end(large);
+            for (int p = from; p < to && q < end; p++) {
+                int x = indices[p];
+                int step = 1;
+                int hi = q;
+                while (hi < end && indices[hi] < x) {
+                    q = hi + 1;
+                    hi += step;
+                    step <<= 1;
+                }
+                // Binary search in [q, min(hi, end - 1)]
+                int lo = q;
+                hi = Math.min(hi, end - 1);
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (indices[mid] < x) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid - 1;
+                    }
+                }
+                q = lo;
+                if (q < end && indices[q] == x) {
+                    count++;
+                    q++;
+                }
+            }
+        } else {
+            // Linear merge
+            int q = matrix.start(large);
+            int end = matrix.end(large);
+            int p = from;
+            while (p < to && q < end) {
+                int x = indices[p];
+                int y = indices[q];
+                if (x < y) {
+                    p++;
+                } else if (x > y) {
+                    q++;
+                } else {
+                    count++;
+                    p++;
+                    q++;
+                }
+            }
+        }
+
+        return count;
+    }
+}
@@ -1,21 +1,28 @@
 package similarity;
 
-import gnu.trove.map.TObjectFloatMap;
-import gnu.trove.map.hash.TObjectFloatHashMap;
+import data.Index;
+import gnu.trove.map.TLongFloatMap;
+import gnu.trove.map.hash.TLongFloatHashMap;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 
 /**
  * Implementation that loads pre-computed similarities into memory. The
- * similarities are required to be symmetrical.
+ * similarities are required to be symmetrical, and pairs not in the file have
+ * a similarity of 0.
+ * <p>
+ * Elements are mapped to integer ids, and each pair is stored under a single
+ * primitive <code>long</code> key with both ids, so that no objects are
+ * created per pair or per lookup.
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
  */
-public class FileSimilarity implements ISimilarity {
+public class FileSimilarity implements ISparseSimilarity {
 
-    private final TObjectFloatMap<String> similarities;
+    private final Index<String> index;
+    private final TLongFloatMap similarities;
 
     /**
      * Creates a new similarity from the values in the given file. The format
@@ -25,8 +32,10 @@ public class FileSimilarity implements ISimilarity {
      * @throws java.io.IOException
      */
     public FileSimilarity(String file) throws IOException {
-        similarities = new TObjectFloatHashMap<>();
+        index = new Index<>();
+        similarities = new TLongFloatHashMap();
         loadSimilarities(file);
+        index.freeze();
     }
 
     private void loadSimilarities(String file) throws IOException {
@@ -34,29 +43,42 @@ public class FileSimilarity implements ISimilarity {
         reader.lines().forEach(line -> {
             String[] tok = line.split("\t");
 
-            String elem1 = tok[0];
-            String elem2 = tok[1];
             float value = Float.parseFloat(tok[2]);
-
             if (Float.isNaN(value)) {
                 return;
             }
 
-            // Since the similarity is assumed symmetric store always
-            // the smaller element first
-            String lookup = elem1.compareTo(elem2) < 0
-                            ? elem1 + ":" + elem2
-                            : elem2 + ":" + elem1;
-            similarities.put(lookup, value);
+            int elem1 = index.addElement(tok[0]);
+            int elem2 = index.addElement(tok[1]);
+            similarities.put(lookup(elem1, elem2), value);
         });
         reader.close();
     }
 
+    // Since the similarity is assumed symmetric store always the smaller id
+    // in the upper half of the key
+    private static long lookup(int first, int second) {
+        return first < second
+               ? ((long) first << 32) | second
+               : ((long) second << 32) | first;
+    }
+
     @Override
     public float compute(String first, String second) {
-        String lookup = first.compareTo(second) < 0
-                        ? first + ":" + second
-                        : second + ":" + first;
+        int elem1 = index.getId(first);
+        int elem2 = index.getId(second);
+        if (elem1 < 0 || elem2 < 0) {
+            return 0;
+        }
+        long lookup = lookup(elem1, elem2);
         return similarities.containsKey(lookup) ? similarities.get(lookup) : 0;
     }
+
+    @Override
+    public void forEachPair(PairProcedure procedure) {
+        similarities.forEachEntry((lookup, value) -> {
+            procedure.execute(index.getElement((int) (lookup >>> 32)), index.getElement((int) lookup), value);
+            return true;
+        });
+    }
 }
@@ -0,0 +1,21 @@
+package similarity;
+
+/**
+ * Interface for similarity functions between users or items given by their
+ * internal ids, which avoid looking up and hashing identifiers.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+@FunctionalInterface
+public interface IIndexedSimilarity {
+
+    /**
+     * Computes the similarity score between two elements (users or items).
+     *
+     * @param first Internal id of the first element.
+     * @param second Internal id of the second element.
+     * @return The computed similarity score.
+     */
+    float compute(int first, int second);
+}
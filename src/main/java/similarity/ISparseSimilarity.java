@@ -0,0 +1,37 @@
+package similarity;
+
+/**
+ * Interface for symmetric similarity functions with a sparse set of non-zero
+ * values, which can be enumerated. The similarity of any pair that is not
+ * enumerated is assumed to be 0.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public interface ISparseSimilarity extends ISimilarity {
+
+    /**
+     * Procedure executed for each pair of elements with a stored similarity.
+     */
+    @FunctionalInterface
+    interface PairProcedure {
+
+        /**
+         * Processes a stored similarity.
+         *
+         * @param first First element.
+         * @param second Second element.
+         * @param score Similarity score between both elements.
+         */
+        void execute(String first, String second, float score);
+    }
+
+    /**
+     * Executes the given procedure for each pair of elements with a stored
+     * similarity. Since similarities are symmetric, each unordered pair is
+     * visited only once, in no particular order.
+     *
+     * @param procedure Procedure to execute.
+     */
+    void forEachPair(PairProcedure procedure);
+}
@@ -2,82 +2,366 @@ package similarity;
 
 import data.PreferenceData;
 import data.ScoredItem;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import gnu.trove.map.hash.TIntIntHashMap;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.stream.IntStream;
+import util.TextChunk;
+import util.TopKHeaps;
 
 /**
  * Computes and mantains item neighborhoods.
+ * <p>
+ * Neighborhoods are built in parallel: chunks of the similarity file are
+ * scanned by different threads into partial top-K heaps, which are merged
+ * afterwards. The neighbors of each item, and the items of which it is a
+ * neighbor (inverse neighbors), are stored as sparse rows indexed by the
+ * internal item ids of the training data, sorted by id.
  *
  * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
  * @author Iván Cantador (ivan.cantador@uam.es)
  */
 public class ItemNeighborhoods {
 
+    private final PreferenceData train;
     private final int numNeighbors;
-    private final Map<String, Queue<ScoredItem>> neighbors;
-    private final Map<String, Set<ScoredItem>> invNeighbors;
+    // Neighbors of each item
+    private int[] neighborOffsets;
+    private int[] neighborIds;
+    private float[] neighborScores;
+    // Inverse neighbors of each item
+    private int[] invNeighborOffsets;
+    private int[] invNeighborIds;
+    private float[] invNeighborScores;
 
     public ItemNeighborhoods(PreferenceData train, int num, String simFile, boolean normalize) throws IOException {
-        numNeighbors = num;
-        neighbors = new HashMap<>();
-        invNeighbors = new HashMap<>();
-        loadNeighborhoods(train, simFile, normalize);
+        this.train = train;
+        this.numNeighbors = num;
+        if (MappedSimilarity.isMappedSimilarity(simFile)) {
+            build(loadNeighborhoods(new MappedSimilarity(simFile)), normalize);
+        } else {
+            build(loadNeighborhoods(simFile), normalize);
+        }
     }
 
-    private void loadNeighborhoods(PreferenceData train, String file, boolean normalize) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-        reader.lines().forEach(line -> {
-            String[] tok = line.split("\t");
+    public ItemNeighborhoods(PreferenceData train, int num, MappedSimilarity sim, boolean normalize) {
+        this.train = train;
+        this.numNeighbors = num;
+        build(loadNeighborhoods(sim), normalize);
+    }
 
-            String itemA = tok[0];
-            String itemB = tok[1];
-            float sim = Float.parseFloat(tok[2]);
+    public ItemNeighborhoods(PreferenceData train, int num, CooccurrenceSimilarity sim, boolean normalize) {
+        this.train = train;
+        this.numNeighbors = num;
+        build(loadNeighborhoods(sim), normalize);
+    }
 
-            if (!train.containsItem(itemA) || !train.containsItem(itemB) || Float.isNaN(sim)) {
-                return;
+    private TopKHeaps loadNeighborhoods(String file) throws IOException {
+        // Scan the chunks in parallel into partial heaps, grouped by stripes
+        // of items
+        int numStripes = Runtime.getRuntime().availableProcessors();
+        List<TextChunk> chunks = TextChunk.split(file, 4 * numStripes);
+        PartialNeighborhoods[] partials = chunks.stream()
+                .parallel()
+                .map(chunk -> new PartialNeighborhoods(chunk, numStripes))
+                .toArray(PartialNeighborhoods[]::new);
+        for (PartialNeighborhoods partial : partials) {
+            if (partial.malformed >= 0) {
+                throw new IOException("Malformed line at byte " + partial.malformed + " of " + file);
             }
+        }
+
+        // Merge the partial heaps, each thread taking the items of a stripe
+        int numItems = train.maxItemID() + 1;
+        TopKHeaps heaps = new TopKHeaps(numNeighbors, numItems);
+        IntStream.range(0, numStripes)
+                .parallel()
+                .forEach(s -> {
+                    for (PartialNeighborhoods partial : partials) {
+                        for (int p = partial.stripeOffsets[s]; p < partial.stripeOffsets[s + 1]; p++) {
+                            heaps.merge(partial.stripeItems[p], partial.heaps, partial.stripeSlots[p]);
+                        }
+                    }
+                });
+
+        return heaps;
+    }
+
+    // Rows of the binary file are read in place, each one into its own heap
+    private TopKHeaps loadNeighborhoods(MappedSimilarity sim) {
+        int[] trainIds = IntStream.range(0, sim.numItems())
+                .parallel()
+                .map(a -> train.itemId(sim.item(a)))
+                .toArray();
+
+        int numItems = train.maxItemID() + 1;
+        TopKHeaps heaps = new TopKHeaps(numNeighbors, numItems);
+        IntStream.range(0, sim.numItems())
+                .parallel()
+                .filter(a -> trainIds[a] >= 0)
+                .forEach(a -> {
+                    for (long p = sim.start(a); p < sim.end(a); p++) {
+                        int b = trainIds[sim.neighbor(p)];
+                        float score = sim.score(p);
+                        if (b >= 0 && !Float.isNaN(score)) {
+                            heaps.offer(trainIds[a], b, score);
+                        }
+                    }
+                });
+
+        return heaps;
+    }
+
+    // Rows are already indexed by internal item ids
+    private TopKHeaps loadNeighborhoods(CooccurrenceSimilarity sim) {
+        int numItems = train.maxItemID() + 1;
+        TopKHeaps heaps = new TopKHeaps(numNeighbors, numItems);
+        int[] ids = sim.ids();
+        float[] scores = sim.scores();
+        IntStream.range(0, numItems)
+                .parallel()
+                .forEach(i -> {
+                    for (int p = sim.start(i); p < sim.end(i); p++) {
+                        heaps.offer(i, ids[p], scores[p]);
+                    }
+                });
+
+        return heaps;
+    }
+
+    // Top-K heaps of a chunk of the similarity file, created only for the
+    // items found in the chunk
+    private class PartialNeighborhoods {
 
-            ScoredItem neigh = new ScoredItem(itemB, sim);
+        private final TopKHeaps heaps = new TopKHeaps(numNeighbors, 0);
+        // Heap of each internal item id
+        private final TIntIntHashMap slots = new TIntIntHashMap(16, 0.5f, -1, -1);
+        // Items and their heaps, grouped by stripe (item % numStripes)
+        private final int[] stripeOffsets;
+        private int[] stripeItems;
+        private int[] stripeSlots;
+        // Position of the first malformed line, or -1
+        private long malformed = -1;
 
-            Queue<ScoredItem> top = neighbors.computeIfAbsent(itemA, i -> new PriorityQueue<>(numNeighbors));
-            if (top.size() < numNeighbors) {
-                top.offer(neigh);
-            } else if (top.peek().compareTo(neigh) < 0) {
-                top.poll();
-                top.offer(neigh);
+        private PartialNeighborhoods(TextChunk chunk, int numStripes) {
+            stripeOffsets = new int[numStripes + 1];
+            parse(chunk);
+            if (malformed >= 0) {
+                return;
             }
-        });
 
-        for (String item : neighbors.keySet()) {
-            Queue<ScoredItem> neighs = neighbors.get(item);
+            // Group the items by stripe, so that each merge task only visits
+            // its own items
+            slots.forEachKey(item -> {
+                stripeOffsets[item % numStripes + 1]++;
+                return true;
+            });
+            for (int s = 0; s < numStripes; s++) {
+                stripeOffsets[s + 1] += stripeOffsets[s];
+            }
+            stripeItems = new int[slots.size()];
+            stripeSlots = new int[slots.size()];
+            int[] next = Arrays.copyOf(stripeOffsets, numStripes);
+            slots.forEachEntry((item, slot) -> {
+                int p = next[item % numStripes]++;
+                stripeItems[p] = item;
+                stripeSlots[p] = slot;
+                return true;
+            });
+        }
+
+        private void parse(TextChunk chunk) {
+            // Each distinct token is looked up in the training data only once
+            TextChunk.Dictionary dictionary = new TextChunk.Dictionary(chunk);
+            int[] trainIds = new int[16];
+
+            while (chunk.nextLine()) {
+                if (chunk.numFields() < 3) {
+                    malformed = chunk.linePosition();
+                    return;
+                }
 
-            if (normalize) {
-                double sum = neighs.stream().mapToDouble(n -> n.getScore()).sum();
-                neighs.forEach((ScoredItem si) -> si.setScore(si.getScore() / (float) sum));
+                int known = dictionary.size();
+                int a = dictionary.add(0);
+                if (a >= known) {
+                    trainIds = lookup(trainIds, a, chunk, 0);
+                }
+                known = dictionary.size();
+                int b = dictionary.add(1);
+                if (b >= known) {
+                    trainIds = lookup(trainIds, b, chunk, 1);
+                }
+
+                int itemA = trainIds[a];
+                int itemB = trainIds[b];
+                float sim = chunk.getFloat(2);
+                if (itemA < 0 || itemB < 0 || Float.isNaN(sim)) {
+                    continue;
+                }
+
+                int slot = slots.get(itemA);
+                if (slot < 0) {
+                    slot = heaps.addHeap();
+                    slots.put(itemA, slot);
+                }
+                heaps.offer(slot, itemB, sim);
             }
+        }
 
-            for (ScoredItem ni : neighs) {
-                String neigh = ni.getItem();
-                ScoredItem si = new ScoredItem(item, ni.getScore());
-                invNeighbors.computeIfAbsent(neigh, n -> new HashSet<>()).add(si);
+        private int[] lookup(int[] trainIds, int token, TextChunk chunk, int field) {
+            if (token == trainIds.length) {
+                trainIds = Arrays.copyOf(trainIds, 2 * trainIds.length);
             }
+            trainIds[token] = train.itemId(chunk.getString(field));
+            return trainIds;
+        }
+    }
+
+    private void build(TopKHeaps heaps, boolean normalize) {
+        int numItems = train.maxItemID() + 1;
+
+        // Neighbors, sorted by id
+        neighborOffsets = new int[numItems + 1];
+        for (int i = 0; i < numItems; i++) {
+            neighborOffsets[i + 1] = neighborOffsets[i] + heaps.size(i);
         }
+        neighborIds = new int[neighborOffsets[numItems]];
+        neighborScores = new float[neighborOffsets[numItems]];
+        IntStream.range(0, numItems)
+                .parallel()
+                .forEach(i -> {
+                    int start = neighborOffsets[i];
+                    int size = heaps.size(i);
+                    long[] packed = new long[size];
+                    for (int p = 0; p < size; p++) {
+                        long bits = Float.floatToRawIntBits(heaps.score(i, p)) & 0xFFFFFFFFL;
+                        packed[p] = ((long) heaps.id(i, p) << 32) | bits;
+                    }
+                    Arrays.sort(packed);
 
-        reader.close();
+                    double sum = 0;
+                    for (int p = 0; p < size; p++) {
+                        neighborIds[start + p] = (int) (packed[p] >>> 32);
+                        neighborScores[start + p] = Float.intBitsToFloat((int) packed[p]);
+                        sum += neighborScores[start + p];
+                    }
+                    if (normalize) {
+                        for (int p = start; p < start + size; p++) {
+                            neighborScores[p] /= (float) sum;
+                        }
+                    }
+                });
+
+        // Inverse neighbors, visiting items in order so that rows are sorted
+        invNeighborOffsets = new int[numItems + 1];
+        for (int n : neighborIds) {
+            invNeighborOffsets[n + 1]++;
+        }
+        for (int i = 0; i < numItems; i++) {
+            invNeighborOffsets[i + 1] += invNeighborOffsets[i];
+        }
+        invNeighborIds = new int[neighborIds.length];
+        invNeighborScores = new float[neighborIds.length];
+        int[] next = Arrays.copyOf(invNeighborOffsets, numItems);
+        for (int i = 0; i < numItems; i++) {
+            for (int p = neighborOffsets[i]; p < neighborOffsets[i + 1]; p++) {
+                int q = next[neighborIds[p]]++;
+                invNeighborIds[q] = i;
+                invNeighborScores[q] = neighborScores[p];
+            }
+        }
+    }
+
+    /**
+     * @param item Internal id of an item.
+     * @return The position of the first neighbor of the item.
+     */
+    public int neighborsStart(int item) {
+        return neighborOffsets[item];
+    }
+
+    /**
+     * @param item Internal id of an item.
+     * @return The position after the last neighbor of the item.
+     */
+    public int neighborsEnd(int item) {
+        return neighborOffsets[item + 1];
+    }
+
+    /**
+     * @return The internal ids of the neighbors of all items, by position.
+     */
+    public int[] neighborIds() {
+        return neighborIds;
+    }
+
+    /**
+     * @return The similarities with the neighbors of all items, by position.
+     */
+    public float[] neighborScores() {
+        return neighborScores;
+    }
+
+    /**
+     * @param item Internal id of an item.
+     * @return The position of the first inverse neighbor of the item.
+     */
+    public int invNeighborsStart(int item) {
+        return invNeighborOffsets[item];
+    }
+
+    /**
+     * @param item Internal id of an item.
+     * @return The position after the last inverse neighbor of the item.
+     */
+    public int invNeighborsEnd(int item) {
+        return invNeighborOffsets[item + 1];
+    }
+
+    /**
+     * @return The internal ids of the inverse neighbors of all items, by
+     * position.
+     */
+    public int[] invNeighborIds() {
+        return invNeighborIds;
+    }
+
+    /**
+     * @return The similarities with the inverse neighbors of all items, by
+     * position.
+     */
+    public float[] invNeighborScores() {
+        return invNeighborScores;
     }
 
     public Queue<ScoredItem> neighbors(String item) {
-        return neighbors.get(item);
+        int i = train.itemId(item);
+        if (i < 0 || neighborsStart(i) == neighborsEnd(i)) {
+            return null;
+        }
+
+        Queue<ScoredItem> neighs = new PriorityQueue<>(numNeighbors);
+        for (int p = neighborsStart(i); p < neighborsEnd(i); p++) {
+            neighs.add(new ScoredItem(train.item(neighborIds[p]), neighborScores[p]));
+        }
+        return neighs;
     }
 
     public Set<ScoredItem> invNeighbors(String item) {
-        return invNeighbors.get(item);
+        int j = train.itemId(item);
+        if (j < 0 || invNeighborsStart(j) == invNeighborsEnd(j)) {
+            return null;
+        }
+
+        Set<ScoredItem> invNeighs = new HashSet<>();
+        for (int p = invNeighborsStart(j); p < invNeighborsEnd(j); p++) {
+            invNeighs.add(new ScoredItem(train.item(invNeighborIds[p]), invNeighborScores[p]));
+        }
+        return invNeighs;
     }
 }
@@ -0,0 +1,441 @@
+package similarity;
+
+import data.Index;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import util.TextChunk;
+
+/**
+ * Pre-computed similarities stored in a binary sparse-row file, which is
+ * memory-mapped and queried in place without deserializing the rows.
+ * <p>
+ * Each row holds the similar items of an item, sorted by id, as in the
+ * original text file: a line <code>item1 TAB item2 TAB score</code> is stored
+ * in the row of <code>item1</code>. As in {@link FileSimilarity}, similarities
+ * are assumed symmetric, and pairs not in the file have a similarity of 0.
+ * <p>
+ * The file contains a header, the item dictionary as UTF-8 strings sorted by
+ * id, the row offsets, and the arrays of neighbor ids and scores, all in
+ * little-endian order. Files can be created from the command line with:
+ * <code>similarity.MappedSimilarity &lt;similarity file&gt; &lt;binary file&gt;</code>
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class MappedSimilarity implements ISparseSimilarity {
+
+    // "SIMM" in ASCII, as the first bytes of the file, which is little-endian
+    private static final int MAGIC = 0x4D4D4953;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    // Bytes per mapped window, so that no element spans two windows
+    private static final int WINDOW_SHIFT = 30;
+    private static final long WINDOW_MASK = (1L << WINDOW_SHIFT) - 1;
+
+    private final Index<String> index;
+    // Row offsets, and neighbor ids and scores, by mapped windows
+    private final ByteBuffer[] offsets;
+    private final ByteBuffer[] neighbors;
+    private final ByteBuffer[] scores;
+
+    /**
+     * Opens a binary similarity file.
+     *
+     * @param file Path of the binary file.
+     * @throws IOException
+     */
+    public MappedSimilarity(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a binary similarity file: " + file);
+            }
+            int numItems = header.getInt();
+            long nnz = header.getLong();
+            long blobSize = header.getLong();
+
+            long pos = HEADER_SIZE;
+            index = readStrings(channel, pos, numItems, blobSize);
+            pos += 8L * (numItems + 1) + blobSize;
+            offsets = mapWindows(channel, pos, 8L * (numItems + 1));
+            pos += 8L * (numItems + 1);
+            neighbors = mapWindows(channel, pos, 4L * nnz);
+            pos += 4L * nnz;
+            scores = mapWindows(channel, pos, 4L * nnz);
+        }
+    }
+
+    /**
+     * Tests whether the given file is a binary similarity file, by looking at
+     * its header.
+     *
+     * @param file Path of the file.
+     * @return True iff the file starts with the binary similarity header.
+     * @throws IOException
+     */
+    public static boolean isMappedSimilarity(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            return header.position() == 4 && header.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Opens the similarities in the given file, either binary or text.
+     *
+     * @param file Path of the file.
+     * @return The similarities in the file.
+     * @throws IOException
+     */
+    public static ISparseSimilarity open(String file) throws IOException {
+        return isMappedSimilarity(file) ? new MappedSimilarity(file) : new FileSimilarity(file);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long pos, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer[] mapWindows(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer[] windows = new ByteBuffer[(int) ((size + WINDOW_MASK) >>> WINDOW_SHIFT)];
+        for (int w = 0; w < windows.length; w++) {
+            long start = (long) w << WINDOW_SHIFT;
+            windows[w] = map(channel, pos + start, Math.min(size - start, 1L << WINDOW_SHIFT));
+        }
+        return windows;
+    }
+
+    private static Index<String> readStrings(FileChannel channel, long pos, int n, long blobSize) throws IOException {
+        if (blobSize > Integer.MAX_VALUE) {
+            throw new IOException("Dictionary too large: " + blobSize + " bytes");
+        }
+
+        ByteBuffer offsets = map(channel, pos, 8L * (n + 1));
+        ByteBuffer blob = map(channel, pos + 8L * (n + 1), blobSize);
+        Index<String> index = new Index<>();
+        byte[] bytes = new byte[64];
+        for (int s = 0; s < n; s++) {
+            int start = (int) offsets.getLong(8 * s);
+            int len = (int) offsets.getLong(8 * (s + 1)) - start;
+            if (bytes.length < len) {
+                bytes = new byte[len];
+            }
+            blob.position(start);
+            blob.get(bytes, 0, len);
+            index.addElement(new String(bytes, 0, len, StandardCharsets.UTF_8));
+        }
+        index.freeze();
+
+        return index;
+    }
+
+    /**
+     * @return The number of items in the dictionary of this file.
+     */
+    public int numItems() {
+        return index.size();
+    }
+
+    /**
+     * Retrieves the internal id of an item in this file.
+     *
+     * @param item Item identifier.
+     * @return The internal id of the item, or -1 if it is not in this file.
+     */
+    public int itemId(String item) {
+        return index.getId(item);
+    }
+
+    /**
+     * Retrieves an item given its internal id in this file.
+     *
+     * @param itemId Internal id of the item.
+     * @return The item identifier.
+     */
+    public String item(int itemId) {
+        return index.getElement(itemId);
+    }
+
+    /**
+     * @param itemId Internal id of an item.
+     * @return The position of the first neighbor of the item.
+     */
+    public long start(int itemId) {
+        return getLong(offsets, 8L * itemId);
+    }
+
+    /**
+     * @param itemId Internal id of an item.
+     * @return The position after the last neighbor of the item.
+     */
+    public long end(int itemId) {
+        return getLong(offsets, 8L * (itemId + 1));
+    }
+
+    /**
+     * @param p Position of a neighbor, as given by {@link #start(int) start()}
+     * and {@link #end(int) end()}.
+     * @return The internal id of the neighbor.
+     */
+    public int neighbor(long p) {
+        long b = 4 * p;
+        return neighbors[(int) (b >>> WINDOW_SHIFT)].getInt((int) (b & WINDOW_MASK));
+    }
+
+    /**
+     * @param p Position of a neighbor, as given by {@link #start(int) start()}
+     * and {@link #end(int) end()}.
+     * @return The similarity score with the neighbor.
+     */
+    public float score(long p) {
+        long b = 4 * p;
+        return scores[(int) (b >>> WINDOW_SHIFT)].getFloat((int) (b & WINDOW_MASK));
+    }
+
+    private static long getLong(ByteBuffer[] windows, long b) {
+        return windows[(int) (b >>> WINDOW_SHIFT)].getLong((int) (b & WINDOW_MASK));
+    }
+
+    // Binary search of a neighbor in the row of an item
+    private long find(int itemId, int neighborId) {
+        long low = start(itemId);
+        long high = end(itemId) - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int n = neighbor(mid);
+            if (n < neighborId) {
+                low = mid + 1;
+            } else if (n > neighborId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public float compute(String first, String second) {
+        int elem1 = index.getId(first);
+        int elem2 = index.getId(second);
+        if (elem1 < 0 || elem2 < 0) {
+            return 0;
+        }
+
+        // The pair may have been stored in any of the two rows
+        long p = find(elem1, elem2);
+        if (p < 0) {
+            p = find(elem2, elem1);
+        }
+        return p < 0 ? 0 : score(p);
+    }
+
+    @Override
+    public void forEachPair(PairProcedure procedure) {
+        for (int i = 0; i < index.size(); i++) {
+            for (long p = start(i); p < end(i); p++) {
+                int j = neighbor(p);
+                // Pairs stored in both rows are visited from the smaller id
+                if (i < j || (i > j && find(j, i) < 0)) {
+                    procedure.execute(item(i), item(j), score(p));
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a text similarity file, with lines
+     * <code>item1 TAB item2 TAB score</code>, into a binary similarity file.
+     * NaN scores are ignored, and if a pair appears more than once only one of
+     * its scores is kept.
+     *
+     * @param in Path of the text similarity file.
+     * @param out Path of the binary file.
+     * @throws IOException
+     */
+    public static void write(String in, String out) throws IOException {
+        // Parse the chunks in parallel, with local ids for each chunk
+        List<TextChunk> chunks = TextChunk.split(in, 4 * Runtime.getRuntime().availableProcessors());
+        ParsedChunk[] parsed = chunks.stream()
+                .parallel()
+                .map(ParsedChunk::new)
+                .toArray(ParsedChunk[]::new);
+
+        // Translate local ids into global ids, following the file order
+        Index<String> index = new Index<>();
+        int[][] maps = new int[parsed.length][];
+        for (int c = 0; c < parsed.length; c++) {
+            if (parsed[c].malformed >= 0) {
+                throw new IOException("Malformed line at byte " + parsed[c].malformed + " of " + in);
+            }
+            maps[c] = Stream.of(parsed[c].tokens).mapToInt(index::addElement).toArray();
+        }
+        int numItems = index.size();
+
+        // Count the neighbors of each item
+        long[] rowOffsets = new long[numItems + 1];
+        for (int c = 0; c < parsed.length; c++) {
+            for (int p = 0; p < parsed[c].firsts.size(); p++) {
+                rowOffsets[maps[c][parsed[c].firsts.getQuick(p)] + 1]++;
+            }
+        }
+        for (int i = 0; i < numItems; i++) {
+            rowOffsets[i + 1] += rowOffsets[i];
+        }
+        if (rowOffsets[numItems] > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many similarities to convert in memory: " + rowOffsets[numItems]);
+        }
+
+        // Place each similarity in its row, packing the neighbor id and the
+        // score bits so that each row can be sorted by neighbor id
+        long[] packed = new long[(int) rowOffsets[numItems]];
+        long[] next = Arrays.copyOf(rowOffsets, numItems);
+        for (int c = 0; c < parsed.length; c++) {
+            ParsedChunk chunk = parsed[c];
+            for (int p = 0; p < chunk.firsts.size(); p++) {
+                int i = maps[c][chunk.firsts.getQuick(p)];
+                int j = maps[c][chunk.seconds.getQuick(p)];
+                long bits = Float.floatToRawIntBits(chunk.scores.getQuick(p)) & 0xFFFFFFFFL;
+                packed[(int) next[i]++] = ((long) j << 32) | bits;
+            }
+        }
+        IntStream.range(0, numItems)
+                .parallel()
+                .forEach(i -> Arrays.sort(packed, (int) rowOffsets[i], (int) rowOffsets[i + 1]));
+
+        // Remove duplicate neighbors within each row
+        int nnz = 0;
+        long[] uniqueOffsets = new long[numItems + 1];
+        for (int i = 0; i < numItems; i++) {
+            for (int p = (int) rowOffsets[i]; p < rowOffsets[i + 1]; p++) {
+                if (p == rowOffsets[i] || (packed[p] >>> 32) != (packed[nnz - 1] >>> 32)) {
+                    packed[nnz++] = packed[p];
+                }
+            }
+            uniqueOffsets[i + 1] = nnz;
+        }
+
+        byte[][] items = new byte[numItems][];
+        long blobSize = 0;
+        for (int i = 0; i < numItems; i++) {
+            items[i] = index.getElement(i).getBytes(StandardCharsets.UTF_8);
+            blobSize += items[i].length;
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(out), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(numItems);
+            buffer.putLong(nnz);
+            buffer.putLong(blobSize);
+
+            // Dictionary
+            long offset = 0;
+            for (int i = 0; i <= numItems; i++) {
+                ensureRemaining(channel, buffer, 8);
+                buffer.putLong(offset);
+                if (i < numItems) {
+                    offset += items[i].length;
+                }
+            }
+            for (byte[] item : items) {
+                int p = 0;
+                while (p < item.length) {
+                    ensureRemaining(channel, buffer, 1);
+                    int len = Math.min(buffer.remaining(), item.length - p);
+                    buffer.put(item, p, len);
+                    p += len;
+                }
+            }
+
+            // Rows
+            for (long o : uniqueOffsets) {
+                ensureRemaining(channel, buffer, 8);
+                buffer.putLong(o);
+            }
+            for (int p = 0; p < nnz; p++) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt((int) (packed[p] >>> 32));
+            }
+            for (int p = 0; p < nnz; p++) {
+                ensureRemaining(channel, buffer, 4);
+                buffer.putInt((int) packed[p]);
+            }
+
+            flush(channel, buffer);
+        }
+    }
+
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Similarities of a chunk of the text file, with local item ids
+    private static class ParsedChunk {
+
+        private final TIntArrayList firsts = new TIntArrayList();
+        private final TIntArrayList seconds = new TIntArrayList();
+        private final TFloatArrayList scores = new TFloatArrayList();
+        private final String[] tokens;
+        // Position of the first malformed line, or -1
+        private long malformed = -1;
+
+        private ParsedChunk(TextChunk chunk) {
+            TextChunk.Dictionary dictionary = new TextChunk.Dictionary(chunk);
+            while (chunk.nextLine()) {
+                if (chunk.numFields() < 3) {
+                    malformed = chunk.linePosition();
+                    break;
+                }
+
+                float score = chunk.getFloat(2);
+                if (Float.isNaN(score)) {
+                    continue;
+                }
+                firsts.add(dictionary.add(0));
+                seconds.add(dictionary.add(1));
+                scores.add(score);
+            }
+            tokens = dictionary.tokens();
+        }
+    }
+
+    /**
+     * Converts a text similarity file into a binary similarity file.
+     *
+     * @param args Input text file and output binary file.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: <similarity file> <binary file>");
+            return;
+        }
+
+        write(args[0], args[1]);
+    }
+}
@@ -0,0 +1,195 @@
+package similarity;
+
+import data.CsrMatrix;
+import gnu.trove.list.array.TIntArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Locality sensitive hashing index for Jaccard's coefficient between the rows
+ * of a {@link CsrMatrix CSR matrix}, e.g. the sets of items of users.
+ * <p>
+ * Each row is summarized with a MinHash signature of <code>b * r</code>
+ * values, and the signature is split into <code>b</code> bands of
+ * <code>r</code> values. Rows that agree on all the values of any band are
+ * candidate neighbors, so a pair with similarity <code>s</code> is found with
+ * probability <code>1 - (1 - s^r)^b</code>. More bands increase recall, and
+ * more rows per band reduce the number of candidates. Candidates are meant to
+ * be re-ranked with the exact similarity.
+ * <p>
+ * Empty rows are not indexed, as they are not similar to any other row.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class MinHashIndex {
+
+    private final int numRows;
+    private final int numBands;
+    private final int rowsPerBand;
+    // Signature of each row, row-wise
+    private final int[] signatures;
+    // For each band, the packed (bucket key, row) pairs sorted by key
+    private final long[][] buckets;
+
+    /**
+     * Builds the index of the rows of the given matrix.
+     *
+     * @param matrix Matrix whose rows are the sets to index.
+     * @param numBands Number of bands b.
+     * @param rowsPerBand Number of signature values per band r.
+     * @param seed Seed of the random hash functions.
+     */
+    public MinHashIndex(CsrMatrix matrix, int numBands, int rowsPerBand, long seed) {
+        this.numRows = matrix.numRows();
+        this.numBands = numBands;
+        this.rowsPerBand = rowsPerBand;
+
+        // Multiply-shift hash functions
+        int numHashes = numBands * rowsPerBand;
+        if ((long) numRows * numHashes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many signature values, use less bands or rows per band");
+        }
+        Random random = new Random(seed);
+        long[] a = new long[numHashes];
+        long[] b = new long[numHashes];
+        for (int h = 0; h < numHashes; h++) {
+            a[h] = random.nextLong() | 1;
+            b[h] = random.nextLong();
+        }
+
+        // Signatures, computed in parallel
+        int[] indices = matrix.indices();
+        signatures = new int[numRows * numHashes];
+        IntStream.range(0, numRows)
+                .parallel()
+                .forEach(row -> {
+                    int base = row * numHashes;
+                    Arrays.fill(signatures, base, base + numHashes, Integer.MAX_VALUE);
+                    for (int p = matrix.start(row); p < matrix.end(row); p++) {
+                        long x = indices[p];
+                        for (int h = 0; h < numHashes; h++) {
+                            int value = (int) ((a[h] * x + b[h]) >>> 33);
+                            if (value < signatures[base + h]) {
+                                signatures[base + h] = value;
+                            }
+                        }
+                    }
+                });
+
+        // Buckets of each band
+        int[] indexed = IntStream.range(0, numRows)
+                .filter(row -> matrix.degree(row) > 0)
+                .toArray();
+        buckets = new long[numBands][];
+        IntStream.range(0, numBands)
+                .parallel()
+                .forEach(band -> {
+                    long[] entries = new long[indexed.length];
+                    for (int p = 0; p < indexed.length; p++) {
+                        entries[p] = ((long) bucketKey(indexed[p], band) << 32) | indexed[p];
+                    }
+                    Arrays.sort(entries);
+                    buckets[band] = entries;
+                });
+    }
+
+    // Hash of the signature values of a band, as a non-negative int so that
+    // packed entries sort by key
+    private int bucketKey(int row, int band) {
+        int base = row * numBands * rowsPerBand + band * rowsPerBand;
+        long h = band;
+        for (int k = 0; k < rowsPerBand; k++) {
+            h = (h + signatures[base + k]) * 0x9E3779B97F4A7C15L;
+        }
+        return (int) (h >>> 33);
+    }
+
+    /**
+     * Retrieves the candidate neighbors of a row, i.e. those that share a
+     * bucket with the row in at least one band.
+     *
+     * @param row Query row.
+     * @return Sorted array with the candidate rows, not including the query
+     * row itself.
+     */
+    public int[] candidates(int row) {
+        TIntArrayList candidates = new TIntArrayList();
+        for (int band = 0; band < numBands; band++) {
+            long[] entries = buckets[band];
+            long key = (long) bucketKey(row, band) << 32;
+
+            // First entry of the bucket
+            int low = 0;
+            int high = entries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int p = low; p < entries.length && (entries[p] >>> 32) == (key >>> 32); p++) {
+                int other = (int) entries[p];
+                if (other != row) {
+                    candidates.add(other);
+                }
+            }
+        }
+
+        // Remove the rows found in more than one band
+        candidates.sort();
+        int n = 0;
+        for (int p = 0; p < candidates.size(); p++) {
+            if (n == 0 || candidates.getQuick(p) != candidates.getQuick(n - 1)) {
+                candidates.setQuick(n++, candidates.getQuick(p));
+            }
+        }
+        return candidates.toArray(0, n);
+    }
+
+    /**
+     * Estimates Jaccard's coefficient between two rows as the fraction of
+     * equal signature values.
+     *
+     * @param first First row.
+     * @param second Second row.
+     * @return The estimated similarity.
+     */
+    public float estimate(int first, int second) {
+        int numHashes = numBands * rowsPerBand;
+        int equal = 0;
+        for (int h = 0; h < numHashes; h++) {
+            if (signatures[first * numHashes + h] == signatures[second * numHashes + h]) {
+                equal++;
+            }
+        }
+        return (float) equal / numHashes;
+    }
+
+    /**
+     * @return The number of bands b.
+     */
+    public int getNumBands() {
+        return numBands;
+    }
+
+    /**
+     * @return The number of signature values per band r.
+     */
+    public int getRowsPerBand() {
+        return rowsPerBand;
+    }
+
+    /**
+     * Computes the similarity at which a pair has a probability of 1/2 of
+     * becoming a candidate, approximately <code>(1 / b)^(1 / r)</code>.
+     *
+     * @return The similarity threshold of this index.
+     */
+    public float threshold() {
+        return (float) Math.pow(1.0 / numBands, 1.0 / rowsPerBand);
+    }
+}
@@ -0,0 +1,209 @@
+package util;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Thread-safe cache of values computed on demand for int keys, optionally
+ * bounded in size with least recently used eviction.
+ * <p>
+ * Keys are spread over lock stripes, each with its own primitive map, so
+ * threads only contend when they access keys of the same stripe. Values are
+ * computed outside the stripe locks, and only once per key: threads that
+ * request a key while its value is being computed wait for that computation
+ * instead of repeating it.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ *
+ * @param <V> Type of the cached values.
+ */
+public class ConcurrentIntCache<V> {
+
+    private static final int NUM_STRIPES = 64;
+
+    private final Stripe<V>[] stripes;
+    // Maximum number of values per stripe, or 0 if unbounded
+    private final int maxStripeSize;
+
+    /**
+     * Creates a new empty cache.
+     *
+     * @param maxSize Maximum number of cached values, or 0 for an unbounded
+     * cache. The bound is enforced per stripe, so it is approximate.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentIntCache(int maxSize) {
+        this.stripes = (Stripe<V>[]) new Stripe<?>[NUM_STRIPES];
+        for (int s = 0; s < NUM_STRIPES; s++) {
+            stripes[s] = new Stripe<>();
+        }
+        this.maxStripeSize = maxSize > 0 ? Math.max(1, (maxSize + NUM_STRIPES - 1) / NUM_STRIPES) : 0;
+    }
+
+    /**
+     * Retrieves the value of a key, computing it if it is not cached.
+     *
+     * @param key Key of the value.
+     * @param loader Function that computes the value of a key.
+     * @return The value of the key.
+     */
+    public V get(int key, IntFunction<V> loader) {
+        Stripe<V> stripe = stripes[mix(key) & (NUM_STRIPES - 1)];
+        Node<V> node;
+        boolean owner = false;
+
+        synchronized (stripe) {
+            node = stripe.map.get(key);
+            if (node == null) {
+                node = new Node<>(key);
+                stripe.map.put(key, node);
+                stripe.addFirst(node);
+                owner = true;
+                if (maxStripeSize > 0 && stripe.map.size() > maxStripeSize) {
+                    stripe.remove(stripe.tail);
+                }
+            } else if (maxStripeSize > 0) {
+                stripe.moveToFront(node);
+            }
+        }
+
+        if (owner) {
+            try {
+                node.complete(loader.apply(key), null);
+            } catch (RuntimeException | Error ex) {
+                // Do not cache failures
+                synchronized (stripe) {
+                    if (stripe.map.get(key) == node) {
+                        stripe.remove(node);
+                    }
+                }
+                node.complete(null, ex);
+                throw ex;
+            }
+        }
+
+        return node.await();
+    }
+
+    // Spreads the bits of keys that differ only in the upper bits
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return The number of values in this cache, including those being
+     * computed.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes all the values of this cache.
+     */
+    public void clear() {
+        for (Stripe<V> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.map.clear();
+                stripe.head = null;
+                stripe.tail = null;
+            }
+        }
+    }
+
+    // Primitive map and recency list of the keys of a stripe
+    private static class Stripe<V> {
+
+        private final TIntObjectHashMap<Node<V>> map = new TIntObjectHashMap<>();
+        // Most and least recently used nodes
+        private Node<V> head;
+        private Node<V> tail;
+
+        private void addFirst(Node<V> node) {
+            node.prev = null;
+            node.next = head;
+            if (head != null) {
+                head.prev = node;
+            }
+            head = node;
+            if (tail == null) {
+                tail = node;
+            }
+        }
+
+        private void unlink(Node<V> node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        private void moveToFront(Node<V> node) {
+            if (head != node) {
+                unlink(node);
+                addFirst(node);
+            }
+        }
+
+        private void remove(Node<V> node) {
+            unlink(node);
+            map.remove(node.key);
+        }
+    }
+
+    // Value of a key, which may be still being computed
+    private static class Node<V> {
+
+        private final int key;
+        private Node<V> prev;
+        private Node<V> next;
+        private V value;
+        private Throwable failure;
+        private boolean done;
+
+        private Node(int key) {
+            this.key = key;
+        }
+
+        private synchronized void complete(V value, Throwable failure) {
+            this.value = value;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        private synchronized V await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Value could not be computed for key " + key, failure);
+            }
+            return value;
+        }
+    }
+}
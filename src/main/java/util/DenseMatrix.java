@@ -0,0 +1,135 @@
+package util;
+
+/**
+ * Dense row-major matrix of floats stored in flat arrays, with a row stride
+ * equal to the number of columns.
+ * <p>
+ * To avoid the 2^31 elements limit of Java arrays, rows are split into chunks
+ * that hold a power of two number of rows, so that a row never spans two
+ * chunks. The elements of a row are accessed through the array returned by
+ * {@link #data(int) data()}, starting at {@link #offset(int) offset()}:
+ * <pre>
+ * float[] data = m.data(row);
+ * int off = m.offset(row);
+ * for (int k = 0; k &lt; m.cols(); k++) {
+ *     ... data[off + k] ...
+ * }
+ * </pre>
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class DenseMatrix {
+
+    // Maximum number of elements in each chunk
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private final int rows;
+    private final int cols;
+    // Rows per chunk are 2^shift
+    private final int shift;
+    private final int mask;
+    private final float[][] chunks;
+
+    /**
+     * Creates a new matrix of zeros with the given size.
+     *
+     * @param rows Number of rows.
+     * @param cols Number of columns.
+     */
+    public DenseMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.shift = 31 - Integer.numberOfLeadingZeros(Math.max(1, MAX_CHUNK_SIZE / Math.max(1, cols)));
+        this.mask = (1 << shift) - 1;
+
+        int rowsPerChunk = 1 << shift;
+        int numChunks = (int) (((long) rows + rowsPerChunk - 1) / rowsPerChunk);
+        this.chunks = new float[numChunks][];
+        for (int c = 0; c < numChunks; c++) {
+            int chunkRows = Math.min(rowsPerChunk, rows - c * rowsPerChunk);
+            chunks[c] = new float[chunkRows * cols];
+        }
+    }
+
+    /**
+     * @return The number of rows of this matrix.
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @return The number of columns of this matrix.
+     */
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * Returns the array that holds the given row.
+     *
+     * @param row Target row.
+     * @return The backing array of the row, which starts at
+     * {@link #offset(int) offset(row)}.
+     */
+    public float[] data(int row) {
+        return chunks[row >>> shift];
+    }
+
+    /**
+     * Returns the position of the first element of the given row in its
+     * {@link #data(int) backing array}.
+     *
+     * @param row Target row.
+     * @return The offset of the row.
+     */
+    public int offset(int row) {
+        return (row & mask) * cols;
+    }
+
+    /**
+     * Retrieves an element of this matrix.
+     *
+     * @param row Row of the element.
+     * @param col Column of the element.
+     * @return The value of the element.
+     */
+    public float get(int row, int col) {
+        return chunks[row >>> shift][(row & mask) * cols + col];
+    }
+
+    /**
+     * Updates an element of this matrix.
+     *
+     * @param row Row of the element.
+     * @param col Column of the element.
+     * @param value New value of the element.
+     */
+    public void set(int row, int col, float value) {
+        chunks[row >>> shift][(row & mask) * cols + col] = value;
+    }
+
+    /**
+     * Copies a row of this matrix into the given vector.
+     *
+     * @param row Target row.
+     * @param dst Vector of size at least {@link #cols() cols()}.
+     */
+    public void getRow(int row, float[] dst) {
+        System.arraycopy(data(row), offset(row), dst, 0, cols);
+    }
+
+    /**
+     * Computes the dot product between a row of this matrix and a row of
+     * another matrix with the same number of columns.
+     *
+     * @param row Row of this matrix.
+     * @param other Other matrix.
+     * @param otherRow Row of the other matrix.
+     * @return The dot product between the rows.
+     */
+    public float dot(int row, DenseMatrix other, int otherRow) {
+        return MatrixUtils.dotProduct(data(row), offset(row), other.data(otherRow), other.offset(otherRow), cols);
+    }
+}
@@ -1,5 +1,6 @@
 package util;
 
+import java.util.Arrays;
 import java.util.Random;
 import java.util.function.IntPredicate;
 import java.util.stream.IntStream;
@@ -19,16 +20,45 @@ public class MatrixUtils {
     }
 
     public static void add(float[] target, float[] toAdd, float scale) {
+        add(target, toAdd, 0, scale);
+    }
+
+    /**
+     * Adds a scaled vector stored at the given offset of an array to the
+     * target vector.
+     *
+     * @param target Vector to update.
+     * @param toAdd Array with the vector to add.
+     * @param offset Position of the vector to add within its array.
+     * @param scale Scale of the vector to add.
+     */
+    public static void add(float[] target, float[] toAdd, int offset, float scale) {
         for (int i = 0; i < target.length; i++) {
-            target[i] += scale * toAdd[i];
+            target[i] += scale * toAdd[offset + i];
         }
     }
 
     public static float distance2(float[] v, float[] w) {
+        return distance2(v, 0, w, 0, v.length);
+    }
+
+    /**
+     * Computes the squared euclidean distance between two vectors stored at
+     * the given offsets of two arrays.
+     *
+     * @param v Array with the first vector.
+     * @param vOffset Position of the first vector within its array.
+     * @param w Array with the second vector.
+     * @param wOffset Position of the second vector within its array.
+     * @param n Length of the vectors.
+     * @return The squared distance between the vectors.
+     */
+    public static float distance2(float[] v, int vOffset, float[] w, int wOffset, int n) {
         float dist = 0;
 
-        for (int i = 0; i < v.length; i++) {
-            dist += (v[i] - w[i]) * (v[i] - w[i]);
+        for (int i = 0; i < n; i++) {
+            float d = v[vOffset + i] - w[wOffset + i];
+            dist += d * d;
         }
 
         return dist;
@@ -51,6 +81,25 @@ public class MatrixUtils {
         }
     }
 
+    /**
+     * Initializes the given matrix with independent draws from a gaussian
+     * distribution, in row-major order.
+     *
+     * @param matrix matrix to initialize
+     * @param mean mean of the Gaussian distribution to draw from
+     * @param std standard deviation of the Gaussian distribution to draw from
+     */
+    public static void setRandGaussian(DenseMatrix matrix, float mean, float std) {
+        Random rand = new Random(RAND_SEED);
+        for (int i = 0; i < matrix.rows(); i++) {
+            float[] data = matrix.data(i);
+            int off = matrix.offset(i);
+            for (int j = 0; j < matrix.cols(); j++) {
+                data[off + j] = (float) (mean + std * rand.nextGaussian());
+            }
+        }
+    }
+
     public static void setRandUniform(float[][] matrix, float scale) {
         Random rand = new Random(RAND_SEED);
         for (int i = 0; i < matrix.length; i++) {
@@ -79,6 +128,27 @@ public class MatrixUtils {
         return norm;
     }
 
+    /**
+     * Computes the Frobenius norm of the given matrix, i.e. the sum of the
+     * squares of its elements.
+     *
+     * @param matrix input matrix to compute the norm of
+     * @return A scalar with the Frobenius norm of the matrix.
+     */
+    public static float norm2(DenseMatrix matrix) {
+        float norm = 0;
+
+        for (int i = 0; i < matrix.rows(); i++) {
+            float[] data = matrix.data(i);
+            int off = matrix.offset(i);
+            for (int j = 0; j < matrix.cols(); j++) {
+                norm += data[off + j] * data[off + j];
+            }
+        }
+
+        return norm;
+    }
+
     /**
      * Computes the square of the L2 norm of the given vector, i.e. the sum of
      * the squares of its elements.
@@ -104,10 +174,25 @@ public class MatrixUtils {
      * @return The dot product between the vectors.
      */
     public static float dotProduct(float[] x, float[] y) {
+        return dotProduct(x, 0, y, 0, x.length);
+    }
+
+    /**
+     * Computes the dot product between two vectors of floats stored at the
+     * given offsets of two arrays.
+     *
+     * @param x array with the first vector
+     * @param xOffset position of the first vector within its array
+     * @param y array with the second vector
+     * @param yOffset position of the second vector within its array
+     * @param n length of the vectors
+     * @return The dot product between the vectors.
+     */
+    public static float dotProduct(float[] x, int xOffset, float[] y, int yOffset, int n) {
         float prod = 0;
 
-        for (int k = 0; k < x.length; k++) {
-            prod += x[k] * y[k];
+        for (int k = 0; k < n; k++) {
+            prod += x[xOffset + k] * y[yOffset + k];
         }
 
         return prod;
@@ -137,27 +222,38 @@ public class MatrixUtils {
      * Given a matrix A, computes the product <code>A'A</code>, where A' is the
      * transpose of A. It is possible to specify which rows of A should be used
      * in the computation.
+     * <p>
+     * The rows of A are visited sequentially, accumulating their outer
+     * products.
      *
      * @param matrix Input matrix.
      * @param rowSelector Predicate that returns <tt>true</tt> for row indices
      * that should be used in the computation of <code>A'A</code>.
      * @return The product <code>A'A</code>.
      */
-    public static float[][] transposeTimes(float[][] matrix, IntPredicate rowSelector) {
-        int rows = matrix.length;
-        int cols = matrix[0].length;
+    public static float[][] transposeTimes(DenseMatrix matrix, IntPredicate rowSelector) {
+        int rows = matrix.rows();
+        int cols = matrix.cols();
         float[][] res = new float[cols][cols];
 
-        for (int i = 0; i < cols; i++) {
-            for (int j = i; j < cols; j++) {
-                float x = 0;
-                for (int k = 0; k < rows; k++) {
-                    if (rowSelector.test(k)) {
-                        x += matrix[k][i] * matrix[k][j];
-                    }
+        for (int k = 0; k < rows; k++) {
+            if (!rowSelector.test(k)) {
+                continue;
+            }
+            float[] data = matrix.data(k);
+            int off = matrix.offset(k);
+            for (int i = 0; i < cols; i++) {
+                float x = data[off + i];
+                float[] resi = res[i];
+                for (int j = i; j < cols; j++) {
+                    resi[j] += x * data[off + j];
                 }
-                res[i][j] = x;
-                res[j][i] = x;
+            }
+        }
+
+        for (int i = 0; i < cols; i++) {
+            for (int j = i + 1; j < cols; j++) {
+                res[j][i] = res[i][j];
             }
         }
 
@@ -166,26 +262,130 @@ public class MatrixUtils {
 
     /**
      * Given a matrix A, computes the product <code>A'A</code>, where A' is the
-     * transpose of A. It is possible to specify which rows of A should be used
-     * in the computation.
+     * transpose of A.
      *
      * @param inputMatrix Input matrix A.
      * @param outputMatrix Output matrix in which the result A'A is stored.
      */
-    public static void transposeTimes(float[][] inputMatrix, double[][] outputMatrix) {
-        int rows = inputMatrix.length;
-        int cols = inputMatrix[0].length;
+    public static void transposeTimes(DenseMatrix inputMatrix, double[][] outputMatrix) {
+        float[][] res = transposeTimes(inputMatrix);
+        for (int i = 0; i < res.length; i++) {
+            for (int j = 0; j < res.length; j++) {
+                outputMatrix[i][j] = res[i][j];
+            }
+        }
+    }
 
+    /**
+     * Given a matrix A, computes the product <code>A'A</code> over a subset of
+     * its rows, accumulating in double precision.
+     *
+     * @param inputMatrix Input matrix A.
+     * @param rowSelector Predicate that returns <tt>true</tt> for row indices
+     * that should be used in the computation of <code>A'A</code>.
+     * @param outputMatrix Output matrix in which the result A'A is stored.
+     */
+    public static void transposeTimes(DenseMatrix inputMatrix, IntPredicate rowSelector, double[][] outputMatrix) {
+        int cols = inputMatrix.cols();
         for (int i = 0; i < cols; i++) {
-            for (int j = i; j < cols; j++) {
-                float x = 0;
-                for (int k = 0; k < rows; k++) {
-                    x += inputMatrix[k][i] * inputMatrix[k][j];
+            Arrays.fill(outputMatrix[i], 0);
+        }
+
+        for (int k = 0; k < inputMatrix.rows(); k++) {
+            if (!rowSelector.test(k)) {
+                continue;
+            }
+            float[] data = inputMatrix.data(k);
+            int off = inputMatrix.offset(k);
+            for (int i = 0; i < cols; i++) {
+                double x = data[off + i];
+                double[] resi = outputMatrix[i];
+                for (int j = i; j < cols; j++) {
+                    resi[j] += x * data[off + j];
                 }
-                outputMatrix[i][j] = x;
-                outputMatrix[j][i] = x;
             }
         }
+
+        for (int i = 0; i < cols; i++) {
+            for (int j = i + 1; j < cols; j++) {
+                outputMatrix[j][i] = outputMatrix[i][j];
+            }
+        }
+    }
+
+    /**
+     * Computes the trace of the product of two symmetric matrices,
+     * <code>trace(AB)</code>, which is the sum of their element-wise product.
+     * For <code>A = P'P</code> and <code>B = Q'Q</code>, this is the sum of
+     * the squares of all the elements of <code>PQ'</code>.
+     *
+     * @param A First symmetric matrix.
+     * @param B Second symmetric matrix.
+     * @return The trace of AB.
+     */
+    public static double traceProduct(double[][] A, double[][] B) {
+        double trace = 0;
+        for (int i = 0; i < A.length; i++) {
+            for (int j = 0; j < A.length; j++) {
+                trace += A[i][j] * B[i][j];
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Solves the linear system <code>Ax = b</code> in place for a symmetric
+     * positive definite matrix A, using its Cholesky decomposition
+     * <code>A = LL'</code>.
+     * <p>
+     * Only the lower triangle of A is read, and it is overwritten with L. The
+     * solution x is stored in b.
+     *
+     * @param A Square matrix of size n x n, stored row-wise.
+     * @param b Right-hand side vector of size n, overwritten with the
+     * solution.
+     * @param n Size of the system.
+     * @throws IllegalArgumentException If A is not positive definite.
+     */
+    public static void choleskySolve(double[] A, double[] b, int n) {
+        // Decomposition, row by row
+        for (int j = 0; j < n; j++) {
+            double d = A[j * n + j];
+            for (int k = 0; k < j; k++) {
+                d -= A[j * n + k] * A[j * n + k];
+            }
+            if (d <= 0) {
+                throw new IllegalArgumentException("Matrix is not positive definite");
+            }
+            d = Math.sqrt(d);
+            A[j * n + j] = d;
+
+            for (int i = j + 1; i < n; i++) {
+                double s = A[i * n + j];
+                for (int k = 0; k < j; k++) {
+                    s -= A[i * n + k] * A[j * n + k];
+                }
+                A[i * n + j] = s / d;
+            }
+        }
+
+        // Forward substitution, Ly = b
+        for (int i = 0; i < n; i++) {
+            double s = b[i];
+            for (int k = 0; k < i; k++) {
+                s -= A[i * n + k] * b[k];
+            }
+            b[i] = s / A[i * n + i];
+        }
+
+        // Back substitution, L'x = y
+        for (int i = n - 1; i >= 0; i--) {
+            double s = b[i];
+            for (int k = i + 1; k < n; k++) {
+                s -= A[k * n + i] * b[k];
+            }
+            b[i] = s / A[i * n + i];
+        }
     }
 
     /**
@@ -195,7 +395,7 @@ public class MatrixUtils {
      * @param matrix Input matrix.
      * @return The product <code>A'A</code>.
      */
-    public static float[][] transposeTimes(float[][] matrix) {
+    public static float[][] transposeTimes(DenseMatrix matrix) {
         return transposeTimes(matrix, k -> true);
     }
 
@@ -1,23 +1,32 @@
 package util;
 
 import data.PreferenceData;
-import data.ScoredItem;
+import data.RankedItems;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import recommender.IRecommender;
 import recommender.knn.ItemKnn;
 import recommender.knn.UserKnn;
 import recommender.mf.cross.SimMF;
 import recommender.mf.FastMF;
+import recommender.mf.IStoppingPolicy;
 import recommender.mf.ImplicitMF;
+import recommender.mf.LossImprovementStopping;
 import recommender.mf.MFRecommender;
+import recommender.mf.TimeBudgetStopping;
 import recommender.mf.cross.CentroidMF;
 import recommender.mf.cross.NeighborMF;
-import similarity.FileSimilarity;
+import similarity.CooccurrenceSimilarity;
+import similarity.CsrJaccard;
+import similarity.ISparseSimilarity;
 import similarity.ItemNeighborhoods;
-import similarity.Jaccard;
+import similarity.MappedSimilarity;
+import similarity.MinHashIndex;
 
 /**
  * Command-line tool to run recommendation algorithms for the experiments.
@@ -27,10 +36,17 @@ import similarity.Jaccard;
  */
 public class RecommenderRunner {
 
+    // Prefix of the similarity arguments computed from the training data
+    private static final String COOCCURRENCE = "cooc:";
+    // Number of users scored at once by MF recommenders
+    private static final int BATCH_SIZE = 4096;
+
     private final PreferenceData train;
     private final PreferenceData test;
     private final Set<String> targetItems;
     private IRecommender recommender;
+    // Policies to stop training MF recommenders early
+    private final List<IStoppingPolicy> stoppingPolicies = new ArrayList<>();
 
     public RecommenderRunner(PreferenceData train, PreferenceData test, Set<String> targetItems) {
         this.train = train;
@@ -38,27 +54,54 @@ public class RecommenderRunner {
         this.targetItems = targetItems;
     }
 
-    private void buildUserKnn(int neighbors) {
-        Jaccard jaccard = new Jaccard(train::userItems);
-        recommender = new UserKnn(train, jaccard, neighbors);
+    // Cross-domain item similarities from co-occurrences in the training data
+    private CooccurrenceSimilarity cooccurrence(String simFile, int neighbors) {
+        String name = simFile.substring(COOCCURRENCE.length()).toUpperCase(Locale.ENGLISH);
+        CooccurrenceSimilarity.Measure measure = CooccurrenceSimilarity.Measure.valueOf(name);
+
+        boolean[] isTarget = new boolean[train.maxItemID() + 1];
+        targetItems.stream()
+                .mapToInt(train::itemId)
+                .filter(i -> i >= 0)
+                .forEach(i -> isTarget[i] = true);
+        return new CooccurrenceSimilarity(train, measure, neighbors, (i, j) -> isTarget[i] != isTarget[j]);
+    }
+
+    private void buildUserKnn(int neighbors, int bands, int rows) {
+        CsrJaccard jaccard = new CsrJaccard(train.userItemMatrix(), train::userId);
+        UserKnn knn = new UserKnn(train, jaccard, neighbors);
+        if (bands > 0) {
+            MinHashIndex index = new MinHashIndex(train.userItemMatrix(), bands, rows, MatrixUtils.RAND_SEED);
+            knn.setCandidateIndex(index);
+            System.err.println("MinHash LSH b=" + bands + " r=" + rows + " threshold=" + index.threshold()
+                    + " " + knn.evaluateCandidateIndex(1000, MatrixUtils.RAND_SEED));
+        }
+        recommender = knn;
     }
 
-    private void buildItemKnn() {
-        Jaccard jaccard = new Jaccard(train::itemUsers);
-        recommender = new ItemKnn(train, jaccard);
+    private void buildItemKnn(int neighbors) {
+        CsrJaccard jaccard = new CsrJaccard(train.itemUserMatrix(), train::itemId);
+        recommender = neighbors < 0
+                      ? new ItemKnn(train, jaccard)
+                      : new ItemKnn(train, jaccard, neighbors);
     }
 
     private void buildMF(MFRecommender mf, int factors, float reg, int iters) {
         mf.setNumFactors(factors);
         mf.setLambda(reg);
         mf.setNumIterations(iters);
+        stoppingPolicies.forEach(mf::addStoppingPolicy);
         mf.train();
         recommender = mf;
     }
 
-    private void buildIMF(int factors, float reg, int iters, float conf) {
+    private void buildIMF(int factors, float reg, int iters, float conf, int cgSteps) {
         ImplicitMF mf = new ImplicitMF(train);
         mf.setAlpha(conf);
+        if (cgSteps > 0) {
+            mf.setSolver(ImplicitMF.Solver.CONJUGATE_GRADIENT);
+            mf.setNumCGSteps(cgSteps);
+        }
         buildMF(mf, factors, reg, iters);
     }
 
@@ -69,7 +112,9 @@ public class RecommenderRunner {
     }
 
     private void buildSimMF(int factors, float reg, int iters, float conf, float lambdaCross, String simFile) throws IOException {
-        FileSimilarity sim = new FileSimilarity(simFile);
+        ISparseSimilarity sim = simFile.startsWith(COOCCURRENCE)
+                                ? cooccurrence(simFile, 0)
+                                : MappedSimilarity.open(simFile);
         SimMF r = new SimMF(train, sim, targetItems);
         r.setLambdaCross(lambdaCross);
         r.setAlpha(conf);
@@ -77,7 +122,9 @@ public class RecommenderRunner {
     }
 
     private void buildCentroidMF(int factors, float reg, int iters, float conf, float lambdaCross, String simFile, int neighbors, boolean normalize) throws IOException {
-        ItemNeighborhoods neighs = new ItemNeighborhoods(train, neighbors, simFile, normalize);
+        ItemNeighborhoods neighs = simFile.startsWith(COOCCURRENCE)
+                                   ? new ItemNeighborhoods(train, neighbors, cooccurrence(simFile, neighbors), normalize)
+                                   : new ItemNeighborhoods(train, neighbors, simFile, normalize);
         CentroidMF r = new CentroidMF(train, neighs, targetItems);
         r.setLambdaCross(lambdaCross);
         r.setAlpha(conf);
@@ -85,33 +132,134 @@ public class RecommenderRunner {
     }
 
     private void buildNeighborMF(int factors, float reg, int iters, float conf, float lambdaCross, String simFile, int neighbors, boolean normalize) throws IOException {
-        ItemNeighborhoods neighs = new ItemNeighborhoods(train, neighbors, simFile, normalize);
+        ItemNeighborhoods neighs = simFile.startsWith(COOCCURRENCE)
+                                   ? new ItemNeighborhoods(train, neighbors, cooccurrence(simFile, neighbors), normalize)
+                                   : new ItemNeighborhoods(train, neighbors, simFile, normalize);
         NeighborMF r = new NeighborMF(train, neighs, targetItems);
         r.setLambdaCross(lambdaCross);
         r.setAlpha(conf);
         buildMF(r, factors, reg, iters);
     }
 
+    private void buildMipsIndex(int lists, int probes, int numRecs) {
+        if (!(recommender instanceof MFRecommender)) {
+            throw new IllegalArgumentException("An index can only be used with MF recommenders");
+        }
+        MFRecommender mf = (MFRecommender) recommender;
+        int[] candidates = candidates();
+        mf.buildMipsIndex(candidates, lists, probes);
+        System.err.println("MIPS IVF lists=" + lists + " probes=" + probes + " "
+                + mf.evaluateMipsIndex(1000, numRecs, candidates, MatrixUtils.RAND_SEED));
+    }
+
+    private void quantize(int shortlist) {
+        if (!(recommender instanceof MFRecommender)) {
+            throw new IllegalArgumentException("Factors can only be quantized for MF recommenders");
+        }
+        MFRecommender mf = (MFRecommender) recommender;
+        mf.setQuantizedItemFactors(mf.quantizeItemFactors(), shortlist);
+    }
+
+    // Internal ids of the target items, which are the candidates
+    private int[] candidates() {
+        return targetItems.stream()
+                .mapToInt(train::itemId)
+                .filter(i -> i >= 0)
+                .sorted()
+                .toArray();
+    }
+
     private void run(int numRecs) {
+        // Look up the candidate items only once
+        int[] candidates = candidates();
+
+        // MF recommenders score blocks of users with a matrix product
+        if (recommender instanceof MFRecommender) {
+            runBatch((MFRecommender) recommender, numRecs, candidates);
+            return;
+        }
+
         for (String user : test.users()) {
-            List<ScoredItem> list = recommender.recommend(user, numRecs, targetItems);
-            list.forEach(i -> System.out.println(user + "\t" + i.getItem() + "\t" + i.getScore()));
+            int u = train.userId(user);
+            // No recommendations can be computed for users without training data
+            if (u < 0) {
+                continue;
+            }
+
+            RankedItems list = recommender.rank(u, numRecs, candidates);
+            for (int p = 0; p < list.size(); p++) {
+                System.out.println(user + "\t" + train.item(list.item(p)) + "\t" + list.score(p));
+            }
+        }
+    }
+
+    private void runBatch(MFRecommender mf, int numRecs, int[] candidates) {
+        // No recommendations can be computed for users without training data
+        String[] users = test.users().stream()
+                .filter(user -> train.userId(user) >= 0)
+                .toArray(String[]::new);
+
+        for (int from = 0; from < users.length; from += BATCH_SIZE) {
+            int to = Math.min(users.length, from + BATCH_SIZE);
+            int[] batch = new int[to - from];
+            for (int b = 0; b < batch.length; b++) {
+                batch[b] = train.userId(users[from + b]);
+            }
+
+            RankedItems[] lists = mf.rankBatch(batch, numRecs, candidates);
+            for (int b = 0; b < batch.length; b++) {
+                for (int p = 0; p < lists[b].size(); p++) {
+                    System.out.println(users[from + b] + "\t" + train.item(lists[b].item(p)) + "\t" + lists[b].score(p));
+                }
+            }
         }
     }
 
     public static void main(String[] args) throws IOException {
         if (args.length < 4) {
             System.err.println("Usage: <source> <target> <test> <nrecs> ...");
-            System.err.println("    userknn <k> : user knn with k neighbors");
-            System.err.println("    itemknn : item knn");
-            System.err.println("    imf <k> <reg> <iters> <conf> : MF for implicit feedback");
+            System.err.println("    userknn <k> [bands rows] : user knn with k neighbors, optionally from MinHash LSH candidates");
+            System.err.println("    itemknn [k] : item knn, optionally precomputing the k most similar items of each item (0 for all)");
+            System.err.println("    imf <k> <reg> <iters> <conf> [cgsteps] : MF for implicit feedback, optionally solved with CG");
             System.err.println("    fastimf <k> <reg> <iters> <conf> : fast-ALS iMF trained with RR1");
             System.err.println("    simmf <k> <reg> <iters> <conf> <crossreg> <file> : cross similarity MF");
             System.err.println("    centroidmf <k> <reg> <iters> <conf> <crossreg> <file> <neighs> <normalize> : cross centroid MF");
             System.err.println("    neighbormf <k> <reg> <iters> <conf> <crossreg> <file> <neighs> <normalize> : cross neighbor MF");
+            System.err.println("Data files can be TSV files or binary snapshots created with data.PreferenceDataSnapshot");
+            System.err.println("Similarity files can be TSV files or binary files created with similarity.MappedSimilarity,");
+            System.err.println("or cooc:jaccard, cooc:cosine or cooc:conditional_probability to compute them from the training data");
+            System.err.println("MF recommenders accept trailing options to compute approximate recommendations:");
+            System.err.println("    mips <lists> <probes> : search an IVF index of the target items");
+            System.err.println("    int8 <shortlist> : shortlist <shortlist> * <nrecs> items with 8-bit factors, and re-rank them,");
+            System.err.println("        which cannot be combined with mips");
+            System.err.println("and to stop training before <iters> iterations:");
+            System.err.println("    tol <improvement> : when the relative improvement of the loss is below <improvement>");
+            System.err.println("    budget <seconds> : when the next iteration would exceed the time budget");
             return;
         }
 
+        // Optional approximate search and early stopping for MF
+        // recommenders, removed from the positional arguments
+        List<String> argList = Arrays.asList(args);
+        int mips = argList.indexOf("mips");
+        int int8 = argList.indexOf("int8");
+        int tol = argList.indexOf("tol");
+        int budget = argList.indexOf("budget");
+        int mipsLists = mips >= 4 ? Integer.parseInt(args[mips + 1]) : 0;
+        int mipsProbes = mips >= 4 ? Integer.parseInt(args[mips + 2]) : 0;
+        int shortlist = int8 >= 4 ? Integer.parseInt(args[int8 + 1]) : 0;
+        float minImprovement = tol >= 4 ? Float.parseFloat(args[tol + 1]) : 0;
+        float maxTime = budget >= 4 ? Float.parseFloat(args[budget + 1]) : 0;
+        int options = argList.stream()
+                .filter(arg -> arg.equals("mips") || arg.equals("int8") || arg.equals("tol") || arg.equals("budget"))
+                .mapToInt(argList::indexOf)
+                .min()
+                .orElse(args.length);
+        args = Arrays.copyOf(args, options);
+        if (mipsLists > 0 && shortlist > 0) {
+            throw new IllegalArgumentException("The mips and int8 options cannot be combined");
+        }
+
         String sourceFile = args[0];
         String trainFile = args[1];
         String testFile = args[2];
@@ -131,26 +279,38 @@ public class RecommenderRunner {
         // those in the target
         Set<String> targetItems = new HashSet<>(train.items());
         train.merge(source);
+        train.freeze();
         printStats("Train ", train);
 
         RecommenderRunner cdr = new RecommenderRunner(train, test, targetItems);
+        if (minImprovement > 0) {
+            cdr.stoppingPolicies.add(new LossImprovementStopping(minImprovement));
+        }
+        if (maxTime > 0) {
+            cdr.stoppingPolicies.add(new TimeBudgetStopping(maxTime));
+        }
 
         String rec = args[4];
         switch (rec) {
             case "userknn": {
                 int k = Integer.parseInt(args[5]);
-                cdr.buildUserKnn(k);
+                int bands = args.length > 7 ? Integer.parseInt(args[6]) : 0;
+                int rows = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+                cdr.buildUserKnn(k, bands, rows);
                 break;
             }
-            case "itemknn":
-                cdr.buildItemKnn();
+            case "itemknn": {
+                int k = args.length > 5 ? Integer.parseInt(args[5]) : -1;
+                cdr.buildItemKnn(k);
                 break;
+            }
             case "imf": {
                 int k = Integer.parseInt(args[5]);
                 float reg = Float.parseFloat(args[6]);
                 int iters = Integer.parseInt(args[7]);
                 float conf = Float.parseFloat(args[8]);
-                cdr.buildIMF(k, reg, iters, conf);
+                int cgSteps = args.length > 9 ? Integer.parseInt(args[9]) : 0;
+                cdr.buildIMF(k, reg, iters, conf, cgSteps);
                 break;
             }
             case "fastimf": {
@@ -199,6 +359,12 @@ public class RecommenderRunner {
                 throw new AssertionError("Unknown recommender.");
         }
 
+        if (mipsLists > 0) {
+            cdr.buildMipsIndex(mipsLists, mipsProbes, numRecs);
+        }
+        if (shortlist > 0) {
+            cdr.quantize(shortlist);
+        }
         cdr.run(numRecs);
     }
 
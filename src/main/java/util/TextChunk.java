@@ -0,0 +1,422 @@
+package util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Newline-aligned region of a memory-mapped text file, with methods to scan
+ * its lines and tab-separated fields without allocating any objects.
+ * <p>
+ * A file is split into chunks with {@link #split(java.lang.String, int)
+ * split()}, so that each chunk can be scanned by a different thread. Empty
+ * lines and lines starting with <tt>#</tt> are skipped, and a trailing carriage
+ * return is not considered part of the line.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class TextChunk {
+
+    // Maximum number of bytes that can be mapped in a single buffer
+    private static final long MAX_CHUNK_SIZE = 1 << 30;
+
+    private final ByteBuffer buffer;
+    // Offset of this chunk within the file
+    private final long fileOffset;
+    // Scanning position, and fields of the current line
+    private int pos;
+    private int numFields;
+    private int[] fieldStart;
+    private int[] fieldEnd;
+    // Reusable buffer to decode strings
+    private byte[] scratch;
+
+    private TextChunk(ByteBuffer buffer, long fileOffset) {
+        this.buffer = buffer;
+        this.fileOffset = fileOffset;
+        this.pos = 0;
+        this.fieldStart = new int[4];
+        this.fieldEnd = new int[4];
+        this.scratch = new byte[64];
+    }
+
+    /**
+     * Maps the given file into memory split into, at least, the given number
+     * of chunks. Chunks always start at the beginning of a line.
+     *
+     * @param file Path of the file to map.
+     * @param numChunks Desired number of chunks. More chunks may be created
+     * for very large files, and less for very small ones.
+     * @return The list of chunks, in file order.
+     * @throws IOException
+     */
+    public static List<TextChunk> split(String file, int numChunks) throws IOException {
+        List<TextChunk> chunks = new ArrayList<>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(1, size / numChunks));
+
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(size, start + chunkSize);
+                if (end < size) {
+                    end = nextLine(channel, end);
+                }
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException("Line too long in file " + file);
+                }
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                chunks.add(new TextChunk(buffer, start));
+                start = end;
+            }
+        }
+
+        return chunks;
+    }
+
+    // Finds the position after the first newline at or after the given one
+    private static long nextLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(1 << 16);
+        long pos = position;
+
+        while (channel.read(block, pos) > 0) {
+            block.flip();
+            while (block.hasRemaining()) {
+                pos++;
+                if (block.get() == '\n') {
+                    return pos;
+                }
+            }
+            block.clear();
+        }
+
+        return pos;
+    }
+
+    /**
+     * Advances to the next line of this chunk with some content.
+     *
+     * @return True if a new line was found, and false if the end of the chunk
+     * was reached.
+     */
+    public boolean nextLine() {
+        int limit = buffer.limit();
+
+        while (pos < limit) {
+            int start = pos;
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            pos = end + 1;
+
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            // Ignore empty lines and lines starting with #
+            if (end == start || buffer.get(start) == '#') {
+                continue;
+            }
+
+            splitFields(start, end);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void splitFields(int start, int end) {
+        numFields = 0;
+        int fs = start;
+        for (int p = start; p <= end; p++) {
+            if (p == end || buffer.get(p) == '\t') {
+                if (numFields == fieldStart.length) {
+                    fieldStart = Arrays.copyOf(fieldStart, 2 * numFields);
+                    fieldEnd = Arrays.copyOf(fieldEnd, 2 * numFields);
+                }
+                fieldStart[numFields] = fs;
+                fieldEnd[numFields] = p;
+                numFields++;
+                fs = p + 1;
+            }
+        }
+    }
+
+    /**
+     * @return The number of tab-separated fields of the current line.
+     */
+    public int numFields() {
+        return numFields;
+    }
+
+    /**
+     * @return Position in the file of the current line.
+     */
+    public long linePosition() {
+        return fileOffset + fieldStart[0];
+    }
+
+    /**
+     * Computes a hash code of the bytes of a field of the current line.
+     *
+     * @param field Index of the field.
+     * @return The hash code of the field.
+     */
+    public int hash(int field) {
+        return hash(fieldStart[field], fieldEnd[field]);
+    }
+
+    private int hash(int start, int end) {
+        int h = 0;
+        for (int p = start; p < end; p++) {
+            h = 31 * h + buffer.get(p);
+        }
+        return h;
+    }
+
+    /**
+     * Returns the position within this chunk of the first byte of a field of
+     * the current line.
+     *
+     * @param field Index of the field.
+     * @return The start position of the field.
+     */
+    public int start(int field) {
+        return fieldStart[field];
+    }
+
+    /**
+     * Returns the position within this chunk after the last byte of a field of
+     * the current line.
+     *
+     * @param field Index of the field.
+     * @return The end position of the field.
+     */
+    public int end(int field) {
+        return fieldEnd[field];
+    }
+
+    /**
+     * Tests whether a field of the current line contains the same bytes as
+     * the given region of this chunk.
+     *
+     * @param field Index of the field.
+     * @param start Start position of the region.
+     * @param end End position of the region.
+     * @return True iff the field and the region have the same content.
+     */
+    public boolean equals(int field, int start, int end) {
+        int fs = fieldStart[field];
+        int len = fieldEnd[field] - fs;
+        if (len != end - start) {
+            return false;
+        }
+        for (int p = 0; p < len; p++) {
+            if (buffer.get(fs + p) != buffer.get(start + p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a field of the current line as an UTF-8 string.
+     *
+     * @param field Index of the field.
+     * @return A new string with the content of the field.
+     */
+    public String getString(int field) {
+        return getString(fieldStart[field], fieldEnd[field]);
+    }
+
+    /**
+     * Decodes the given region of this chunk as an UTF-8 string.
+     *
+     * @param start Start position of the region.
+     * @param end End position of the region.
+     * @return A new string with the content of the region.
+     */
+    public String getString(int start, int end) {
+        int len = end - start;
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, 2 * scratch.length)];
+        }
+        for (int p = 0; p < len; p++) {
+            scratch[p] = buffer.get(start + p);
+        }
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a field of the current line as a float. Plain decimal numbers
+     * are parsed in place, and any other format is delegated to
+     * {@link Float#parseFloat(java.lang.String) Float.parseFloat()}.
+     *
+     * @param field Index of the field.
+     * @return The parsed value.
+     */
+    public float getFloat(int field) {
+        int start = fieldStart[field];
+        int end = fieldEnd[field];
+
+        int p = start;
+        boolean negative = false;
+        if (p < end && (buffer.get(p) == '-' || buffer.get(p) == '+')) {
+            negative = buffer.get(p) == '-';
+            p++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean point = false;
+        for (; p < end; p++) {
+            byte b = buffer.get(p);
+            if (b >= '0' && b <= '9') {
+                // Beyond 15 digits the mantissa is not exact as a double
+                if (++digits > 15) {
+                    return Float.parseFloat(getString(start, end));
+                }
+                mantissa = 10 * mantissa + (b - '0');
+                if (point) {
+                    exponent--;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                // Exponents, NaN, Infinity...
+                return Float.parseFloat(getString(start, end));
+            }
+        }
+        if (digits == 0) {
+            return Float.parseFloat(getString(start, end));
+        }
+
+        double value = exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa;
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Dictionary that assigns consecutive, zero-based, local ids to the
+     * distinct field values found in a chunk. Values are only decoded as
+     * strings when the dictionary is {@link #tokens() materialized}.
+     */
+    public static class Dictionary {
+
+        private final TextChunk chunk;
+        // Location of the first occurrence of each token in the chunk
+        private int[] tokenStart;
+        private int[] tokenEnd;
+        private int size;
+        // Open addressing table with token ids + 1, and 0 for empty slots
+        private int[] table;
+        private int[] hashes;
+
+        /**
+         * Creates a new empty dictionary for the fields of the given chunk.
+         *
+         * @param chunk Chunk in which tokens are found.
+         */
+        public Dictionary(TextChunk chunk) {
+            this.chunk = chunk;
+            this.tokenStart = new int[16];
+            this.tokenEnd = new int[16];
+            this.size = 0;
+            this.table = new int[32];
+            this.hashes = new int[32];
+        }
+
+        /**
+         * Looks up the value of a field of the current line of the chunk,
+         * adding it to the dictionary if not found.
+         *
+         * @param field Index of the field.
+         * @return The local id of the field value.
+         */
+        public int add(int field) {
+            int h = chunk.hash(field);
+            int mask = table.length - 1;
+            int slot = mix(h) & mask;
+
+            while (table[slot] != 0) {
+                int id = table[slot] - 1;
+                if (hashes[slot] == h && chunk.equals(field, tokenStart[id], tokenEnd[id])) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == tokenStart.length) {
+                tokenStart = Arrays.copyOf(tokenStart, 2 * size);
+                tokenEnd = Arrays.copyOf(tokenEnd, 2 * size);
+            }
+            int id = size++;
+            tokenStart[id] = chunk.start(field);
+            tokenEnd[id] = chunk.end(field);
+            table[slot] = id + 1;
+            hashes[slot] = h;
+
+            // Keep the load factor under 0.5
+            if (2 * size > table.length) {
+                rehash();
+            }
+
+            return id;
+        }
+
+        private void rehash() {
+            int[] newTable = new int[2 * table.length];
+            int[] newHashes = new int[2 * table.length];
+            int mask = newTable.length - 1;
+
+            for (int slot = 0; slot < table.length; slot++) {
+                if (table[slot] != 0) {
+                    int s = mix(hashes[slot]) & mask;
+                    while (newTable[s] != 0) {
+                        s = (s + 1) & mask;
+                    }
+                    newTable[s] = table[slot];
+                    newHashes[s] = hashes[slot];
+                }
+            }
+
+            table = newTable;
+            hashes = newHashes;
+        }
+
+        private static int mix(int h) {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * @return The number of distinct tokens in this dictionary.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Decodes all the tokens in this dictionary.
+         *
+         * @return The array of tokens, indexed by local id.
+         */
+        public String[] tokens() {
+            String[] tokens = new String[size];
+            for (int id = 0; id < size; id++) {
+                tokens[id] = chunk.getString(tokenStart[id], tokenEnd[id]);
+            }
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Set of fixed-capacity heaps that keep the top-K (id, score) pairs offered to
+ * each of them, stored in flat primitive arrays.
+ * <p>
+ * Pairs are ranked by decreasing score and, in case of ties, by increasing id,
+ * so the pairs kept by a heap do not depend on the order in which they are
+ * offered. Each heap is a binary min-heap with the worst kept pair at the
+ * root, so a pair is rejected with a single comparison when the heap is full.
+ *
+ * @author Ignacio Fernández (ignacio.fernandezt@uam.es)
+ * @author Iván Cantador (ivan.cantador@uam.es)
+ */
+public class TopKHeaps {
+
+    private final int capacity;
+    private int numHeaps;
+    private int[] sizes;
+    private int[] ids;
+    private float[] scores;
+
+    /**
+     * Creates a new set of heaps.
+     *
+     * @param capacity Maximum number of pairs kept by each heap.
+     * @param numHeaps Initial number of heaps.
+     */
+    public TopKHeaps(int capacity, int numHeaps) {
+        this.capacity = capacity;
+        this.numHeaps = numHeaps;
+        this.sizes = new int[numHeaps];
+        this.ids = new int[numHeaps * capacity];
+        this.scores = new float[numHeaps * capacity];
+    }
+
+    /**
+     * Adds a new empty heap.
+     *
+     * @return The index of the new heap.
+     */
+    public int addHeap() {
+        if (numHeaps == sizes.length) {
+            int newLength = Math.max(16, 2 * sizes.length);
+            sizes = Arrays.copyOf(sizes, newLength);
+            ids = Arrays.copyOf(ids, newLength * capacity);
+            scores = Arrays.copyOf(scores, newLength * capacity);
+        }
+        return numHeaps++;
+    }
+
+    /**
+     * Removes all the pairs of a heap, so that it can be reused.
+     *
+     * @param heap Index of the heap.
+     */
+    public void clear(int heap) {
+        sizes[heap] = 0;
+    }
+
+    /**
+     * @return The number of heaps.
+     */
+    public int numHeaps() {
+        return numHeaps;
+    }
+
+    /**
+     * @return The maximum number of pairs kept by each heap.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Offers a pair to a heap, which is kept if the heap is not full or if it
+     * ranks above the worst pair in the heap.
+     *
+     * @param heap Index of the heap.
+     * @param id Id of the pair.
+     * @param score Score of the pair.
+     */
+    public void offer(int heap, int id, float score) {
+        int base = heap * capacity;
+        int size = sizes[heap];
+
+        if (size < capacity) {
+            // Sift up from the new leaf
+            int p = size;
+            while (p > 0) {
+                int parent = (p - 1) >>> 1;
+                if (!worse(id, score, ids[base + parent], scores[base + parent])) {
+                    break;
+                }
+                ids[base + p] = ids[base + parent];
+                scores[base + p] = scores[base + parent];
+                p = parent;
+            }
+            ids[base + p] = id;
+            scores[base + p] = score;
+            sizes[heap] = size + 1;
+        } else if (capacity > 0 && worse(ids[base], scores[base], id, score)) {
+            // Replace the root and sift down
+            int p = 0;
+            while (true) {
+                int child = 2 * p + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && worse(ids[base + child + 1], scores[base + child + 1], ids[base + child], scores[base + child])) {
+                    child++;
+                }
+                if (!worse(ids[base + child], scores[base + child], id, score)) {
+                    break;
+                }
+                ids[base + p] = ids[base + child];
+                scores[base + p] = scores[base + child];
+                p = child;
+            }
+            ids[base + p] = id;
+            scores[base + p] = score;
+        }
+    }
+
+    // Whether the first pair ranks below the second one
+    private static boolean worse(int id1, float score1, int id2, float score2) {
+        int c = Float.compare(score1, score2);
+        return c < 0 || (c == 0 && id1 > id2);
+    }
+
+    /**
+     * Sorts the pairs kept by a heap in rank order, i.e. by decreasing score
+     * and increasing id, with an in-place heap sort. Afterwards the pairs are
+     * no longer a heap, so it must be {@link #clear(int) cleared} before
+     * offering more pairs to it.
+     *
+     * @param heap Index of the heap.
+     */
+    public void sort(int heap) {
+        int base = heap * capacity;
+        for (int end = sizes[heap] - 1; end > 0; end--) {
+            // Move the worst pair to the end, and sift down the last leaf
+            int id = ids[base + end];
+            float score = scores[base + end];
+            ids[base + end] = ids[base];
+            scores[base + end] = scores[base];
+
+            int p = 0;
+            while (true) {
+                int child = 2 * p + 1;
+                if (child >= end) {
+                    break;
+                }
+                if (child + 1 < end && worse(ids[base + child + 1], scores[base + child + 1], ids[base + child], scores[base + child])) {
+                    child++;
+                }
+                if (!worse(ids[base + child], scores[base + child], id, score)) {
+                    break;
+                }
+                ids[base + p] = ids[base + child];
+                scores[base + p] = scores[base + child];
+                p = child;
+            }
+            ids[base + p] = id;
+            scores[base + p] = score;
+        }
+    }
+
+    /**
+     * Offers all the pairs of a heap of another set to a heap of this set.
+     *
+     * @param heap Index of the heap in this set.
+     * @param other Other set of heaps.
+     * @param otherHeap Index of the heap in the other set.
+     */
+    public void merge(int heap, TopKHeaps other, int otherHeap) {
+        for (int p = 0; p < other.size(otherHeap); p++) {
+            offer(heap, other.id(otherHeap, p), other.score(otherHeap, p));
+        }
+    }
+
+    /**
+     * @param heap Index of the heap.
+     * @return The number of pairs kept by the heap.
+     */
+    public int size(int heap) {
+        return sizes[heap];
+    }
+
+    /**
+     * Returns the id of a pair kept by a heap, in heap order.
+     *
+     * @param heap Index of the heap.
+     * @param p Position of the pair, between 0 and the size of the heap.
+     * @return The id of the pair.
+     */
+    public int id(int heap, int p) {
+        return ids[heap * capacity + p];
+    }
+
+    /**
+     * Returns the score of a pair kept by a heap, in heap order.
+     *
+     * @param heap Index of the heap.
+     * @param p Position of the pair, between 0 and the size of the heap.
+     * @return The score of the pair.
+     */
+    public float score(int heap, int p) {
+        return scores[heap * capacity + p];
+    }
+}